@@ -8,6 +8,7 @@ plugins {
     id("java")
     id("org.jetbrains.intellij.platform") version "2.6.0"
     id("org.jetbrains.kotlin.jvm") version "2.1.21"
+    id("me.champeau.jmh") version "0.7.3"
 }
 
 group = "com.github.pvoid.androidbp.next"
@@ -23,6 +24,7 @@ repositories {
 
 dependencies {
     implementation(kotlin("stdlib"))
+    implementation("com.github.ben-manes.caffeine:caffeine:3.1.8")
     intellijPlatform {
         intellijIdeaCommunity("2025.2.4")
         bundledPlugin("com.intellij.java")
@@ -31,6 +33,19 @@ dependencies {
     }
 }
 
+// Benchmarks run outside of the IDE, so they need platform classes on the classpath
+configurations {
+    named("jmhImplementation") {
+        extendsFrom(configurations.compileOnly.get())
+    }
+}
+
+jmh {
+    warmupIterations.set(3)
+    iterations.set(5)
+    fork.set(1)
+}
+
 tasks {
     patchPluginXml {
         sinceBuild.set("251")
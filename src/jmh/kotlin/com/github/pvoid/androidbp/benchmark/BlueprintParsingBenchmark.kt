@@ -0,0 +1,78 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.github.pvoid.androidbp.benchmark
+
+import com.github.pvoid.androidbp.blueprint.BlueprintLexer
+import com.github.pvoid.androidbp.blueprint.BlueprintsTable
+import com.github.pvoid.androidbp.blueprint.Makefile
+import com.github.pvoid.androidbp.blueprint.parser.BlueprintEvaluator
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import java.io.File
+import java.util.concurrent.TimeUnit
+
+/**
+ * Parsing of the whole synthetic tree, every benchmark goes through all files of its kind
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+open class BlueprintParsingBenchmark {
+
+    @Param("1000")
+    var folders: Int = 0
+
+    @Param("4")
+    var modulesPerFolder: Int = 0
+
+    private lateinit var tree: SyntheticAospTree
+
+    private lateinit var texts: List<Pair<File, String>>
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        tree = SyntheticAospTree.generate(folders, modulesPerFolder)
+        texts = tree.blueprints.map { it.parentFile to it.readText() }
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        tree.delete()
+    }
+
+    @Benchmark
+    fun lexer(blackhole: Blackhole) {
+        val lexer = BlueprintLexer()
+        texts.forEach { (_, text) ->
+            lexer.reset(text, 0, text.length, 0)
+            while (true) {
+                blackhole.consume(lexer.advance() ?: break)
+            }
+        }
+    }
+
+    @Benchmark
+    fun evaluator(blackhole: Blackhole) {
+        texts.forEach { (path, text) ->
+            blackhole.consume(BlueprintEvaluator(text).evaluate(tree.root, path, null))
+        }
+    }
+
+    @Benchmark
+    fun tableParse(blackhole: Blackhole) {
+        tree.blueprints.forEach { file ->
+            blackhole.consume(BlueprintsTable.read(tree.root, file))
+        }
+    }
+
+    @Benchmark
+    fun makefileParse(blackhole: Blackhole) {
+        tree.makefiles.forEach { file ->
+            blackhole.consume(Makefile.parse(file, tree.root))
+        }
+    }
+}
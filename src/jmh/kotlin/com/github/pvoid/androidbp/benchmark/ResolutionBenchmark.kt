@@ -0,0 +1,91 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.github.pvoid.androidbp.benchmark
+
+import com.github.pvoid.androidbp.blueprint.Blueprint
+import com.github.pvoid.androidbp.blueprint.BlueprintsTable
+import com.github.pvoid.androidbp.blueprint.DependenciesScope
+import com.github.pvoid.androidbp.blueprint.DependencyGraph
+import com.github.pvoid.androidbp.idea.project.OutputPaths
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import java.util.concurrent.TimeUnit
+
+/**
+ * Lookups done by the sync over an already indexed synthetic tree
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+open class ResolutionBenchmark {
+
+    @Param("1000")
+    var folders: Int = 0
+
+    @Param("4")
+    var modulesPerFolder: Int = 0
+
+    private lateinit var tree: SyntheticAospTree
+
+    private lateinit var table: BlueprintsTable
+
+    private lateinit var blueprints: List<Blueprint>
+
+    // Modules of the last folders reach the biggest part of the graph
+    private lateinit var roots: List<Blueprint>
+
+    private lateinit var outputPaths: OutputPaths
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        tree = SyntheticAospTree.generate(folders, modulesPerFolder)
+        table = BlueprintsTable(tree.root)
+        val records = (tree.blueprints + tree.makefiles).map { BlueprintsTable.read(tree.root, it) }
+        table.update(records)
+        roots = tree.modules.takeLast(modulesPerFolder * 4).mapNotNull(table::get)
+        outputPaths = OutputPaths(tree.root)
+    }
+
+    // Blueprints cache derived views, so every call gets modules which computed nothing yet
+    @Setup(Level.Invocation)
+    fun readBlueprints() {
+        blueprints = (tree.blueprints + tree.makefiles).flatMap { BlueprintsTable.read(tree.root, it).blueprints }
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        tree.delete()
+    }
+
+    @Benchmark
+    fun dependencies(blackhole: Blackhole) {
+        blueprints.forEach { blueprint ->
+            blackhole.consume(blueprint.dependencies(DependenciesScope.All))
+        }
+    }
+
+    @Benchmark
+    fun dependencyClosure(blackhole: Blackhole) {
+        // A new graph per call, the sync resolves links from scratch too
+        blackhole.consume(DependencyGraph(table).javaDependencies(roots))
+    }
+
+    @Benchmark
+    fun outputPathsCold(blackhole: Blackhole) {
+        val paths = OutputPaths(tree.root)
+        tree.outputJars.forEach { jar ->
+            blackhole.consume(paths.getPath(jar))
+        }
+    }
+
+    @Benchmark
+    fun outputPathsWarm(blackhole: Blackhole) {
+        tree.outputJars.forEach { jar ->
+            blackhole.consume(outputPaths.getPath(jar))
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.github.pvoid.androidbp.benchmark
+
+import com.github.pvoid.androidbp.blueprint.Blueprint
+import com.github.pvoid.androidbp.blueprint.Makefile
+import com.github.pvoid.androidbp.idea.project.BUILD_CACHE_VENDOR_PATH
+import java.io.File
+import java.nio.file.Files
+import kotlin.random.Random
+
+/**
+ * AOSP-shaped tree of build files and build outputs generated in a temporary folder. Every
+ * fourth folder is a makefile one, the rest are blueprints. Modules reference modules of
+ * earlier folders only, so the dependency graph is acyclic like the real one
+ */
+class SyntheticAospTree private constructor(
+    val root: File,
+    val blueprints: List<File>,
+    val makefiles: List<File>,
+    val modules: List<String>,
+    val outputJars: List<String>
+) {
+    fun delete() {
+        root.deleteRecursively()
+    }
+
+    companion object {
+        fun generate(folders: Int, modulesPerFolder: Int, seed: Long = 42): SyntheticAospTree {
+            val root = Files.createTempDirectory("aosp").toFile()
+            val random = Random(seed)
+            val blueprints = mutableListOf<File>()
+            val makefiles = mutableListOf<File>()
+            val modules = mutableListOf<String>()
+            val outputJars = mutableListOf<String>()
+
+            File(root, "build/make/java.mk").apply {
+                parentFile.mkdirs()
+                writeText("LOCAL_SDK_VERSION := current\nLOCAL_JAVA_LANGUAGE_VERSION := 17\n")
+            }
+
+            for (folder in 0 until folders) {
+                val relativePath = "frameworks/group${folder % 16}/component$folder"
+                val path = File(root, relativePath).apply { mkdirs() }
+                val names = List(modulesPerFolder) { "component$folder-lib$it" }
+                val references = {
+                    List(random.nextInt(6)) {
+                        modules.getOrNull(random.nextInt(modules.size + 1))
+                    }.filterNotNull().distinct()
+                }
+
+                if (folder % 4 == 3) {
+                    makefiles.add(File(path, Makefile.DEFAULT_NAME).apply {
+                        writeText(makefile(names, references))
+                    })
+                } else {
+                    blueprints.add(File(path, Blueprint.DEFAULT_NAME).apply {
+                        writeText(blueprint(folder, names, references))
+                    })
+
+                    names.forEachIndexed { index, name ->
+                        // Some of soong outputs live in folders named by a hash
+                        val hash = if (index % 3 == 0) "/${random.nextLong().toULong().toString(16)}" else ""
+                        val jar = "$relativePath/$name/android_common/combined/$name.jar"
+                        File(root, "$BUILD_CACHE_VENDOR_PATH$relativePath/$name$hash/android_common/combined/$name.jar").apply {
+                            parentFile.mkdirs()
+                            createNewFile()
+                        }
+                        outputJars.add(jar)
+                    }
+                }
+
+                modules.addAll(names)
+            }
+
+            return SyntheticAospTree(root, blueprints, makefiles, modules, outputJars)
+        }
+
+        private fun blueprint(folder: Int, names: List<String>, references: () -> List<String>): String {
+            val text = StringBuilder()
+            text.append("// Generated component $folder\n\n")
+            text.append("common_srcs = [\"src/**/*.java\"]\n\n")
+            text.append("java_defaults {\n    name: \"component$folder-defaults\",\n    sdk_version: \"current\",\n}\n\n")
+
+            names.forEachIndexed { index, name ->
+                val type = if (index % 2 == 0) "java_library" else "android_library"
+                text.append("$type {\n")
+                text.append("    name: \"$name\",\n")
+                text.append("    defaults: [\"component$folder-defaults\"],\n")
+                text.append("    srcs: common_srcs + [\n        \"java/$name/**/*.java\",\n        \"aidl/**/*.aidl\",\n    ],\n")
+                text.append("    static_libs: [${references().joinToString { "\"$it\"" }}],\n")
+                text.append("    libs: [${references().joinToString { "\"$it\"" }}],\n")
+                if (type == "android_library") {
+                    text.append("    manifest: \"AndroidManifest.xml\",\n")
+                    text.append("    resource_dirs: [\"res\"],\n")
+                }
+                text.append("    aidl: {\n        local_include_dirs: [\"aidl\"],\n    },\n")
+                text.append("    min_sdk_version: 29,\n")
+                text.append("    installable: true,\n")
+                text.append("}\n\n")
+            }
+            return text.toString()
+        }
+
+        private fun makefile(names: List<String>, references: () -> List<String>): String {
+            val text = StringBuilder()
+            text.append("LOCAL_PATH := \$(call my-dir)\n\n")
+
+            names.forEach { name ->
+                text.append("include \$(CLEAR_VARS)\n")
+                text.append("LOCAL_MODULE := $name\n")
+                text.append("LOCAL_SRC_FILES := \\\n    \$(call all-java-files-under, src) \\\n    \$(call all-Iaidl-files-under, aidl)\n")
+                text.append("LOCAL_STATIC_JAVA_LIBRARIES := ${references().joinToString(" ")}\n")
+                text.append("LOCAL_JAVA_LIBRARIES := ${references().joinToString(" ")}\n")
+                text.append("LOCAL_RESOURCE_DIR := \$(LOCAL_PATH)/res\n")
+                text.append("include build/make/java.mk\n")
+                text.append("include \$(BUILD_STATIC_JAVA_LIBRARY)\n\n")
+            }
+            return text.toString()
+        }
+    }
+}
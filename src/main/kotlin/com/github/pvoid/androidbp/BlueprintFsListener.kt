@@ -8,27 +8,153 @@ package com.github.pvoid.androidbp
 
 import com.android.tools.idea.projectsystem.ProjectSystemSyncManager
 import com.android.tools.idea.projectsystem.getSyncManager
-import com.android.tools.idea.util.toIoFile
 import com.github.pvoid.androidbp.blueprint.Blueprint
+import com.github.pvoid.androidbp.blueprint.BlueprintsFileRecord
 import com.github.pvoid.androidbp.blueprint.BlueprintsTable
+import com.github.pvoid.androidbp.blueprint.Makefile
+import com.github.pvoid.androidbp.idea.project.BUILD_CACHE_KATI_SYSTEM_PATH
+import com.github.pvoid.androidbp.idea.project.BUILD_CACHE_KATI_VENDOR_PATH
+import com.github.pvoid.androidbp.idea.project.BUILD_CACHE_SYSTEM_PATH
+import com.github.pvoid.androidbp.idea.project.BUILD_CACHE_VENDOR_PATH
+import com.github.pvoid.androidbp.idea.project.sync.BuildFilesScanner
 import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.io.FileUtil
 import com.intellij.openapi.vfs.newvfs.BulkFileListener
 import com.intellij.openapi.vfs.newvfs.events.VFileContentChangeEvent
+import com.intellij.openapi.vfs.newvfs.events.VFileCopyEvent
+import com.intellij.openapi.vfs.newvfs.events.VFileCreateEvent
+import com.intellij.openapi.vfs.newvfs.events.VFileDeleteEvent
 import com.intellij.openapi.vfs.newvfs.events.VFileEvent
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent
+import com.intellij.ui.AppUIUtil
+import com.intellij.util.concurrency.AppExecutorUtil
+import java.io.File
+import java.util.concurrent.Callable
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+// Events coming closer than that are handled as a single batch
+private const val QUIET_PERIOD_MS = 500L
+
+private val UPDATE_THREADS = Runtime.getRuntime().availableProcessors()
+
+// Build outputs are written all the time during a build and never hold build files of the tree
+private val OUTPUT_DIRS = listOf(
+    BUILD_CACHE_VENDOR_PATH, BUILD_CACHE_SYSTEM_PATH, BUILD_CACHE_KATI_VENDOR_PATH, BUILD_CACHE_KATI_SYSTEM_PATH
+).map { it.substringBefore('/') }.distinct()
 
 class BlueprintFsListener(
     private val project: Project
 ) : BulkFileListener {
+
+    private val pending = mutableSetOf<File>()
+
+    private var scheduled: ScheduledFuture<*>? = null
+
+    // Flushes run one at a time, so a newer parse of a file is never overwritten by an older one
+    private val flushes = AppExecutorUtil.createBoundedApplicationPoolExecutor("Blueprints flush", 1)
+
     override fun after(events: MutableList<out VFileEvent>) {
-        val files = events.filter { it.file?.name == Blueprint.DEFAULT_NAME }.mapNotNull { it as? VFileContentChangeEvent }.map {
-            it.file
-        }.toList()
+        if (project.isDisposed) {
+            return
+        }
+
+        val aospRoot = BlueprintsTable.getInstance(project).aospRoot ?: return
+        val outputs = OUTPUT_DIRS.map { File(aospRoot, it) }
+        val paths = events.flatMap { it.buildFilePaths() }.map(::File).filter { path ->
+            FileUtil.isAncestor(aospRoot, path, false) && outputs.none { FileUtil.isAncestor(it, path, false) }
+        }
+
+        if (paths.isNotEmpty()) {
+            // Every new event restarts the quiet period
+            synchronized(pending) {
+                pending.addAll(paths)
+                scheduled?.cancel(false)
+                scheduled = AppExecutorUtil.getAppScheduledExecutorService().schedule(
+                    Runnable { flushes.execute { flush() } }, QUIET_PERIOD_MS, TimeUnit.MILLISECONDS
+                )
+            }
+        }
+    }
+
+    private fun flush() {
+        val paths = synchronized(pending) {
+            scheduled = null
+            pending.toList().also {
+                pending.clear()
+            }
+        }
 
-        if (files.isNotEmpty()) {
-            project.getSyncManager().requestSyncProject(ProjectSystemSyncManager.SyncReason.PROJECT_MODIFIED)
+        if (paths.isEmpty() || project.isDisposed) {
+            return
+        }
+
+        val table = BlueprintsTable.getInstance(project)
+
+        // Gone paths drop their modules, new folders are scanned for build files
+        val changes = mutableSetOf<String>()
+        val files = mutableSetOf<File>()
+        paths.forEach { path ->
+            when {
+                path.isDirectory -> BuildFilesScanner.scan(path).let {
+                    files.addAll(it.blueprints)
+                    files.addAll(it.makefiles)
+                }
+                path.isFile -> files.add(path)
+                else -> changes.addAll(table.remove(path))
+            }
+        }
+
+        // Files are parsed in parallel, the table is updated with the results afterward.
+        // Files referenced by 'build' properties of changed files are parsed too
+        val executor = AppExecutorUtil.createBoundedApplicationPoolExecutor("Blueprints update", UPDATE_THREADS)
+        val records = mutableListOf<BlueprintsFileRecord>()
+        try {
+            var batch = files.toList()
+            while (batch.isNotEmpty()) {
+                val parsed = executor.invokeAll(batch.map { file ->
+                    Callable { table.read(file) }
+                }).mapNotNull { it.get() }
+
+                records.addAll(parsed)
+                batch = parsed.flatMap { it.extra }.filter { it.isFile && files.add(it) }
+            }
+        } finally {
+            executor.shutdown()
+        }
+
+        // Update the table first so the sync sees modules which were really changed. Files
+        // with the same content change nothing and don't trigger the sync
+        records.flatMapTo(changes) { table.update(it) }
 
-            val table = BlueprintsTable.getInstance(project)
-            files.asSequence().map { it.toIoFile() }.forEach(table::update)
+        if (changes.isNotEmpty()) {
+            AppUIUtil.invokeLaterIfProjectAlive(project) {
+                project.getSyncManager().requestSyncProject(ProjectSystemSyncManager.SyncReason.PROJECT_MODIFIED)
+            }
         }
     }
-}
\ No newline at end of file
+}
+
+/**
+ * Paths of build files and folders the event touches, both old and new ones for moves
+ */
+private fun VFileEvent.buildFilePaths(): List<String> {
+    val isDirectory = when (this) {
+        is VFileCreateEvent -> isDirectory
+        is VFileContentChangeEvent -> false
+        else -> file?.isDirectory == true
+    }
+
+    val paths = when (this) {
+        is VFileMoveEvent -> listOf(oldPath, newPath)
+        is VFilePropertyChangeEvent -> if (isRename) listOf(oldPath, newPath) else emptyList()
+        is VFileContentChangeEvent, is VFileCreateEvent, is VFileDeleteEvent, is VFileCopyEvent -> listOf(path)
+        else -> emptyList()
+    }
+
+    return paths.filter { path ->
+        val name = path.substringAfterLast('/')
+        if (isDirectory) !name.startsWith(".") else name == Blueprint.DEFAULT_NAME || name == Makefile.DEFAULT_NAME
+    }
+}
@@ -11,6 +11,7 @@ import com.github.pvoid.androidbp.idea.project.OutputPaths
 import com.intellij.openapi.util.io.FileUtil
 import com.intellij.psi.tree.IElementType
 import java.io.File
+import java.util.Collections
 
 object BlueprintType {
     const val AndroidApp = "android_app"
@@ -42,6 +43,12 @@ private class PackageNameCache(
     val timestamp: Long
 )
 
+private class OutputJarsCache(
+    val paths: OutputPaths,
+    val generation: Int,
+    val jars: List<File>
+)
+
 enum class DependenciesScope {
     All,
     Static,
@@ -51,13 +58,45 @@ enum class DependenciesScope {
 class Blueprint(
     val name: String,
     val type: String,
-    private val members: Map<String, Any>,
+    internal val members: BlueprintMembers,
     val path: File,
-    private val relativePath_: String,
+    internal val relativePath_: String,
     val isFromKati: Boolean,
 ) {
     private var packageName: PackageNameCache? = null
 
+    // Derived views are computed on the first use and shared, members never change. Racing
+    // threads compute the same values, so the last write wins without any locking
+    @Volatile
+    private var allDependencies: Set<String>? = null
+
+    @Volatile
+    private var staticDependencies: Set<String>? = null
+
+    @Volatile
+    private var dynamicDependencies: Set<String>? = null
+
+    @Volatile
+    private var defaultNames: Set<String>? = null
+
+    @Volatile
+    private var referenceNames: Set<String>? = null
+
+    @Volatile
+    private var sourceModuleNames: Set<String>? = null
+
+    @Volatile
+    private var sourceFiles: List<File>? = null
+
+    @Volatile
+    private var resourceFiles: List<File>? = null
+
+    @Volatile
+    private var assetFiles: List<File>? = null
+
+    @Volatile
+    private var outputJars: OutputJarsCache? = null
+
     val relativePath: String = "$relativePath_/$name"
 
     fun isAndroidProject(): Boolean {
@@ -85,7 +124,7 @@ class Blueprint(
         // with the default name
         val manifestFile = File(
             path,
-            members["manifest"] as? String ?: "AndroidManifest.xml"
+            members.string(BlueprintMembers.MANIFEST) ?: "AndroidManifest.xml"
         )
 
         return if (manifestFile.exists()) {
@@ -133,7 +172,13 @@ class Blueprint(
         return result.`package`
     }
 
-    fun dependencies(scope: DependenciesScope): Set<String> {
+    fun dependencies(scope: DependenciesScope): Set<String> = when (scope) {
+        DependenciesScope.All -> allDependencies ?: collectDependencies(scope).also { allDependencies = it }
+        DependenciesScope.Static -> staticDependencies ?: collectDependencies(scope).also { staticDependencies = it }
+        DependenciesScope.Dynamic -> dynamicDependencies ?: collectDependencies(scope).also { dynamicDependencies = it }
+    }
+
+    private fun collectDependencies(scope: DependenciesScope): Set<String> {
         val result = mutableSetOf<String>()
 
         // Hack-in some hardcoded dependencies
@@ -147,12 +192,12 @@ class Blueprint(
             if (type in ANDROID_TYPES) {
                 result.add("framework")
                 result.add("framework-res")
-                if (members["no_standard_libs"] as? Boolean != true) {
+                if (members.bool(BlueprintMembers.NO_STANDARD_LIBS) != true) {
                     result.add("core-all")
                 }
                 result.add("kotlin-stdlib")
             } else if (type in JAVA_TYPES) {
-                if (members["no_standard_libs"] as? Boolean != true) {
+                if (members.bool(BlueprintMembers.NO_STANDARD_LIBS) != true) {
                     result.add("core-all")
                 }
                 result.add("kotlin-stdlib")
@@ -164,23 +209,71 @@ class Blueprint(
 
         // Dynamic libraries
         if (scope != DependenciesScope.Static) {
-            members["libs"]?.toStringCollection(result)
+            members.strings(BlueprintMembers.LIBS)?.let(result::addAll)
         }
 
         if (scope != DependenciesScope.Dynamic) {
-            members["static_libs"]?.toStringCollection(result)
+            members.strings(BlueprintMembers.STATIC_LIBS)?.let(result::addAll)
         }
 
-        return result
+        return result.toImmutable()
     }
 
-    fun defaults(): Set<String> {
+    fun defaults(): Set<String> = defaultNames ?: run {
         val result = mutableSetOf<String>()
-        members["defaults"]?.toStringCollection(result)
-        return result
+        members.strings(BlueprintMembers.DEFAULTS)?.let(result::addAll)
+        result.toImmutable().also { defaultNames = it }
     }
 
-    fun outputJars(rootPath: OutputPaths): List<File> = when (type) {
+    fun isSameAs(other: Blueprint): Boolean {
+        return name == other.name && type == other.type && path == other.path &&
+                isFromKati == other.isFromKati && members == other.members
+    }
+
+    /**
+     * Names of all modules this one links to explicitly: libraries, defaults and
+     * modules referenced from sources as :module
+     */
+    fun references(): Set<String> = referenceNames ?: run {
+        val result = mutableSetOf<String>()
+        result.addAll(dependencies(DependenciesScope.Dynamic))
+        result.addAll(dependencies(DependenciesScope.Static))
+        result.addAll(defaults())
+        result.addAll(sourceModules())
+        result.toImmutable().also { referenceNames = it }
+    }
+
+    /**
+     * Names of modules whose outputs are used as sources, i.e. referenced from srcs as :module
+     */
+    fun sourceModules(): Set<String> = sourceModuleNames ?: run {
+        val result = mutableSetOf<String>()
+        members.strings(BlueprintMembers.SRCS)?.forEach { src ->
+            if (src.startsWith(':')) {
+                result.add(src.substring(1).substringBefore('{'))
+            }
+        }
+        result.toImmutable().also { sourceModuleNames = it }
+    }
+
+    /**
+     * Jars of the module, cached until the output paths are invalidated. Jars which are not
+     * built yet are looked up again on the next call
+     */
+    fun outputJars(rootPath: OutputPaths): List<File> {
+        outputJars?.takeIf { it.paths === rootPath && it.generation == rootPath.generation }?.let {
+            return it.jars
+        }
+
+        val generation = rootPath.generation
+        return collectOutputJars(rootPath).toImmutable().also { jars ->
+            if (jars.all(File::exists)) {
+                outputJars = OutputJarsCache(rootPath, generation, jars)
+            }
+        }
+    }
+
+    private fun collectOutputJars(rootPath: OutputPaths): List<File> = when (type) {
         BlueprintType.AndroidLibrary, BlueprintType.JavaLibrary, BlueprintType.JavaLibraryStatic,
         BlueprintType.JavaLibraryHost, BlueprintType.JavaSdk, BlueprintType.SyspropLibrary -> {
             if (!isFromKati) {
@@ -196,7 +289,7 @@ class Blueprint(
             }
         }
         BlueprintType.JavaImport, BlueprintType.JavaImportHost -> {
-            members["jars"]?.toStringList()?.map { File(path, it) } ?: emptyList()
+            members.strings(BlueprintMembers.JARS)?.map { File(path, it) } ?: emptyList()
         }
         BlueprintType.AidlInterface -> listOf(rootPath.getPath("$relativePath_/$name-java/android_common/turbine-combined/$name-java.jar"))
         BlueprintType.HidlInterface -> {
@@ -210,8 +303,9 @@ class Blueprint(
         else -> emptyList()
     }
 
-    fun sources(): List<File> {
-        return members["srcs"]?.toSourcePaths(path.absolutePath)?.map { File(it) } ?: emptyList()
+    fun sources(): List<File> = sourceFiles ?: run {
+        val result = members.strings(BlueprintMembers.SRCS)?.toSourcePaths(path.absolutePath)?.map { File(it) } ?: emptyList()
+        result.toImmutable().also { sourceFiles = it }
     }
 
     fun generatedSources(rootPath: OutputPaths): List<File> = when (type) {
@@ -230,7 +324,7 @@ class Blueprint(
                 listOf(path)
             } else {
                 val path = "$relativePath_/$name/android_common/gen/sysprop/$relativePath_/"
-                members["api_packages"]?.toStringList()?.map {
+                members.strings(BlueprintMembers.API_PACKAGES)?.map {
                     rootPath.getPath("$path/$it.srcjar")
                 }?.toList() ?: emptyList()
             }
@@ -238,11 +332,13 @@ class Blueprint(
         else -> emptyList()
     }
 
-    fun resources(): List<File> {
-        if (type in ANDROID_TYPES) {
-            return (members["resource_dirs"]?.toStringList() ?: listOf("res")).toSourcePaths(path.absolutePath)?.map { File(it) } ?: emptyList()
+    fun resources(): List<File> = resourceFiles ?: run {
+        val result = if (type in ANDROID_TYPES) {
+            (members.strings(BlueprintMembers.RESOURCE_DIRS) ?: listOf("res")).toSourcePaths(path.absolutePath).map { File(it) }
+        } else {
+            emptyList()
         }
-        return emptyList()
+        result.toImmutable().also { resourceFiles = it }
     }
 
     fun generatedResources(rootPath: OutputPaths): List<File> {
@@ -252,20 +348,22 @@ class Blueprint(
         return emptyList()
     }
 
-    fun assets(): List<File> {
-        if (type in ANDROID_TYPES ) {
-            return members["asset_dirs"]?.toSourcePaths(path.absolutePath)?.map { File(it) } ?: emptyList()
+    fun assets(): List<File> = assetFiles ?: run {
+        val result = if (type in ANDROID_TYPES) {
+            members.strings(BlueprintMembers.ASSET_DIRS)?.toSourcePaths(path.absolutePath)?.map { File(it) } ?: emptyList()
+        } else {
+            emptyList()
         }
-        return emptyList()
+        result.toImmutable().also { assetFiles = it }
     }
 
     fun aidl_includes_local(): List<String> = when (type) {
-        BlueprintType.AndroidApp -> (members["aidl"] as? Map<*, *>)?.get("local_include_dirs")?.toStringList() ?: emptyList()
+        BlueprintType.AndroidApp -> members.strings(BlueprintMembers.AIDL_LOCAL_INCLUDE_DIRS) ?: emptyList()
         else -> emptyList()
     }
 
     fun aidl_includes_global(): List<String> = when (type) {
-        BlueprintType.AndroidApp, BlueprintType.AndroidLibrary, BlueprintType.JavaLibraryStatic -> (members["aidl"] as? Map<*, *>)?.get("include_dirs")?.toStringList() ?: emptyList()
+        BlueprintType.AndroidApp, BlueprintType.AndroidLibrary, BlueprintType.JavaLibraryStatic -> members.strings(BlueprintMembers.AIDL_INCLUDE_DIRS) ?: emptyList()
         else -> emptyList()
     }
 
@@ -277,18 +375,16 @@ class Blueprint(
             val name = members["name"] as? String ?: return null
             val relativePath = FileUtil.getRelativePath(root, path) ?: return null
 
-            return Blueprint(name, type, members, path, relativePath, false)
+            return Blueprint(name.interned(), type.interned(), BlueprintMembers.from(members), path, relativePath.interned(), false)
         }
     }
 }
 
-private fun Any.toStringCollection(target: MutableCollection<String>) {
-    (this as? List<*>)?.mapNotNull { it as? String }?.toCollection(target)
-}
+private fun <T> Set<T>.toImmutable(): Set<T> = if (isEmpty()) emptySet() else Collections.unmodifiableSet(this)
 
-private fun Any.toStringList() = (this as? List<*>)?.mapNotNull { it as? String }?.toList()
+private fun <T> List<T>.toImmutable(): List<T> = if (isEmpty()) emptyList() else Collections.unmodifiableList(this)
 
-private fun Any.toSourcePaths(path: String? = null) = (this as? List<*>)?.mapNotNull { it as? String }?.map { item ->
+private fun List<String>.toSourcePaths(path: String? = null) = map { item ->
     if (item[0] == ':') {
         item
     } else {
@@ -0,0 +1,126 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.github.pvoid.androidbp.blueprint
+
+import com.intellij.util.containers.Interner
+
+// Names, paths and dependencies repeat across the whole tree, so they are shared
+private val STRINGS: Interner<String> = Interner.createWeakInterner()
+
+internal fun String.interned(): String = STRINGS.intern(this)
+
+/**
+ * Compact storage of blueprint members. Keeps only the fields the plugin reads, nested
+ * objects are flattened into dotted keys, lists are stored as arrays and all the strings
+ * are interned
+ */
+class BlueprintMembers private constructor(
+    private val keys: Array<String>,
+    private val values: Array<Any>
+) {
+    fun string(key: String): String? = get(key) as? String
+
+    fun bool(key: String): Boolean? = get(key) as? Boolean
+
+    fun strings(key: String): List<String>? {
+        @Suppress("UNCHECKED_CAST")
+        return (get(key) as? Array<String>)?.asList()
+    }
+
+    /**
+     * Visits all the fields. Values are strings, booleans or lists of strings
+     */
+    fun forEach(action: (String, Any) -> Unit) {
+        for (i in keys.indices) {
+            @Suppress("UNCHECKED_CAST")
+            val value = values[i].let { if (it is Array<*>) (it as Array<String>).asList() else it }
+            action(keys[i], value)
+        }
+    }
+
+    private fun get(key: String): Any? {
+        for (i in keys.indices) {
+            if (keys[i] == key) {
+                return values[i]
+            }
+        }
+        return null
+    }
+
+    override fun equals(other: Any?): Boolean {
+        return other is BlueprintMembers && keys.contentEquals(other.keys) && values.contentDeepEquals(other.values)
+    }
+
+    override fun hashCode(): Int = 31 * keys.contentHashCode() + values.contentDeepHashCode()
+
+    companion object {
+        const val LIBS = "libs"
+        const val STATIC_LIBS = "static_libs"
+        const val DEFAULTS = "defaults"
+        const val SRCS = "srcs"
+        const val JARS = "jars"
+        const val MANIFEST = "manifest"
+        const val RESOURCE_DIRS = "resource_dirs"
+        const val ASSET_DIRS = "asset_dirs"
+        const val API_PACKAGES = "api_packages"
+        const val NO_STANDARD_LIBS = "no_standard_libs"
+        const val AIDL_LOCAL_INCLUDE_DIRS = "aidl.local_include_dirs"
+        const val AIDL_INCLUDE_DIRS = "aidl.include_dirs"
+
+        private val KNOWN_KEYS = listOf(
+            LIBS, STATIC_LIBS, DEFAULTS, SRCS, JARS, MANIFEST, RESOURCE_DIRS, ASSET_DIRS, API_PACKAGES,
+            NO_STANDARD_LIBS, AIDL_LOCAL_INCLUDE_DIRS, AIDL_INCLUDE_DIRS
+        ).associateBy { it }
+
+        val EMPTY = BlueprintMembers(emptyArray(), emptyArray())
+
+        /**
+         * Picks known fields from members as they were parsed, nested objects included
+         */
+        fun from(members: Map<*, *>): BlueprintMembers {
+            val keys = mutableListOf<String>()
+            val values = mutableListOf<Any>()
+
+            fun collect(prefix: String?, members: Map<*, *>) {
+                members.forEach { (name, value) ->
+                    if (name !is String) {
+                        return@forEach
+                    }
+
+                    val key = if (prefix == null) name else "$prefix.$name"
+                    if (value is Map<*, *>) {
+                        if (prefix == null) {
+                            collect(key, value)
+                        }
+                        return@forEach
+                    }
+
+                    val knownKey = KNOWN_KEYS[key] ?: return@forEach
+                    compact(value)?.let {
+                        keys.add(knownKey)
+                        values.add(it)
+                    }
+                }
+            }
+
+            collect(null, members)
+
+            return if (keys.isEmpty()) {
+                EMPTY
+            } else {
+                BlueprintMembers(keys.toTypedArray(), values.toTypedArray())
+            }
+        }
+
+        private fun compact(value: Any?): Any? = when (value) {
+            is String -> value.interned()
+            is Boolean -> value
+            is List<*> -> value.mapNotNull { (it as? String)?.interned() }.toTypedArray()
+            else -> null
+        }
+    }
+}
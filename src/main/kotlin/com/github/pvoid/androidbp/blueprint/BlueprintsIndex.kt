@@ -0,0 +1,255 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.github.pvoid.androidbp.blueprint
+
+import com.github.pvoid.androidbp.idea.LOG
+import com.intellij.openapi.application.PathManager
+import com.intellij.openapi.project.Project
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+
+private const val INDEX_MAGIC = 0x41425049 // ABPI
+private const val INDEX_VERSION = 4
+
+private const val VALUE_NONE: Int = 0
+private const val VALUE_STRING: Int = 1
+private const val VALUE_BOOL: Int = 2
+private const val VALUE_LIST: Int = 3
+
+/**
+ * Parsed state of a single blueprint or makefile
+ */
+class BlueprintsFileRecord(
+    val file: File,
+    val timestamp: Long,
+    val size: Long,
+    val hash: Long,
+    val blueprints: List<Blueprint>,
+    val extra: List<File>,
+    val includes: Map<File, Long> = emptyMap()
+) {
+    fun isUpToDate(): Boolean = file.lastModified() == timestamp && file.length() == size && areIncludesUpToDate()
+
+    /**
+     * Checks makefiles included by the file were not touched since it was parsed
+     */
+    fun areIncludesUpToDate(): Boolean = includes.all { (include, timestamp) -> include.lastModified() == timestamp }
+}
+
+/**
+ * On-disk snapshot of parsed build files. Lets the initial sync skip parsing of
+ * files which were not touched since the IDE was closed
+ */
+class BlueprintsIndex(
+    private val file: File,
+    private val aospRoot: File
+) {
+    fun read(): Map<File, BlueprintsFileRecord> {
+        if (!file.exists()) {
+            return emptyMap()
+        }
+
+        return try {
+            DataInputStream(BufferedInputStream(file.inputStream())).use { input ->
+                IndexReader(input).readRecords()
+            }?.associateBy { it.file } ?: emptyMap()
+        } catch (e: Exception) {
+            LOG.warn("Blueprints index $file is broken, dropping it", e)
+            file.delete()
+            emptyMap()
+        }
+    }
+
+    fun write(records: Collection<BlueprintsFileRecord>) {
+        try {
+            file.parentFile.mkdirs()
+            val tmp = File(file.parentFile, "${file.name}.tmp")
+            DataOutputStream(BufferedOutputStream(tmp.outputStream())).use { output ->
+                IndexWriter(output).writeRecords(records)
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } catch (e: IOException) {
+            LOG.warn("Can't save blueprints index $file", e)
+        }
+    }
+
+    private inner class IndexWriter(
+        private val output: DataOutputStream
+    ) {
+        private val strings = mutableMapOf<String, Int>()
+
+        fun writeRecords(records: Collection<BlueprintsFileRecord>) {
+            output.writeInt(INDEX_MAGIC)
+            output.writeInt(INDEX_VERSION)
+            writeString(aospRoot.absolutePath)
+
+            output.writeInt(records.size)
+            records.forEach { record ->
+                writeString(record.file.absolutePath)
+                output.writeLong(record.timestamp)
+                output.writeLong(record.size)
+                output.writeLong(record.hash)
+
+                output.writeInt(record.extra.size)
+                record.extra.forEach { writeString(it.absolutePath) }
+
+                output.writeInt(record.includes.size)
+                record.includes.forEach { (include, timestamp) ->
+                    writeString(include.absolutePath)
+                    output.writeLong(timestamp)
+                }
+
+                output.writeInt(record.blueprints.size)
+                record.blueprints.forEach(::writeBlueprint)
+            }
+        }
+
+        private fun writeBlueprint(blueprint: Blueprint) {
+            writeString(blueprint.name)
+            writeString(blueprint.type)
+            writeString(blueprint.path.absolutePath)
+            writeString(blueprint.relativePath_)
+            output.writeBoolean(blueprint.isFromKati)
+            writeMembers(blueprint.members)
+        }
+
+        private fun writeMembers(members: BlueprintMembers) {
+            val entries = mutableListOf<Pair<String, Any>>()
+            members.forEach { key, value -> entries.add(key to value) }
+            output.writeInt(entries.size)
+            entries.forEach { (key, value) ->
+                writeString(key)
+                writeValue(value)
+            }
+        }
+
+        private fun writeValue(value: Any?) {
+            when (value) {
+                is String -> {
+                    output.writeByte(VALUE_STRING)
+                    writeString(value)
+                }
+                is Boolean -> {
+                    output.writeByte(VALUE_BOOL)
+                    output.writeBoolean(value)
+                }
+                is List<*> -> {
+                    val items = value.filter { it.isIndexable() }
+                    output.writeByte(VALUE_LIST)
+                    output.writeInt(items.size)
+                    items.forEach(::writeValue)
+                }
+                else -> output.writeByte(VALUE_NONE)
+            }
+        }
+
+        private fun writeString(value: String) {
+            val id = strings[value]
+            if (id != null) {
+                output.writeInt(id)
+                return
+            }
+
+            // A new string goes with the next free id followed by its content
+            strings[value] = strings.size
+            output.writeInt(strings.size - 1)
+            val bytes = value.toByteArray(Charsets.UTF_8)
+            output.writeInt(bytes.size)
+            output.write(bytes)
+        }
+    }
+
+    private inner class IndexReader(
+        private val input: DataInputStream
+    ) {
+        private val strings = mutableListOf<String>()
+
+        // Modules of the same file share their folder
+        private val files = mutableMapOf<String, File>()
+
+        fun readRecords(): List<BlueprintsFileRecord>? {
+            if (input.readInt() != INDEX_MAGIC || input.readInt() != INDEX_VERSION) {
+                return null
+            }
+
+            if (readString() != aospRoot.absolutePath) {
+                return null
+            }
+
+            return List(input.readInt()) {
+                val file = File(readString())
+                val timestamp = input.readLong()
+                val size = input.readLong()
+                val hash = input.readLong()
+                val extra = List(input.readInt()) { File(readString()) }
+                val includes = mutableMapOf<File, Long>()
+                repeat(input.readInt()) {
+                    includes[File(readString())] = input.readLong()
+                }
+                val blueprints = List(input.readInt()) { readBlueprint() }
+                BlueprintsFileRecord(file, timestamp, size, hash, blueprints, extra, includes)
+            }
+        }
+
+        private fun readBlueprint(): Blueprint {
+            val name = readString()
+            val type = readString()
+            val path = readString().let { files.getOrPut(it) { File(it) } }
+            val relativePath = readString()
+            val isFromKati = input.readBoolean()
+            return Blueprint(name.interned(), type.interned(), BlueprintMembers.from(readMap()), path, relativePath.interned(), isFromKati)
+        }
+
+        private fun readMap(): Map<String, Any> {
+            val result = mutableMapOf<String, Any>()
+            repeat(input.readInt()) {
+                val key = readString()
+                readValue()?.let { result[key] = it }
+            }
+            return result
+        }
+
+        private fun readValue(): Any? = when (input.readByte().toInt()) {
+            VALUE_STRING -> readString()
+            VALUE_BOOL -> input.readBoolean()
+            VALUE_LIST -> List(input.readInt()) { readValue() }.filterNotNull()
+            VALUE_NONE -> null
+            else -> throw IOException("Unknown value type")
+        }
+
+        private fun readString(): String {
+            val id = input.readInt()
+            if (id < strings.size) {
+                return strings[id]
+            }
+
+            if (id != strings.size) {
+                throw IOException("Broken strings table")
+            }
+
+            val bytes = ByteArray(input.readInt())
+            input.readFully(bytes)
+            return String(bytes, Charsets.UTF_8).also(strings::add)
+        }
+    }
+
+    companion object {
+        fun forProject(project: Project, aospRoot: File): BlueprintsIndex {
+            val file = File(PathManager.getSystemPath(), "androidbp/${project.locationHash}.index")
+            return BlueprintsIndex(file, aospRoot)
+        }
+    }
+}
+
+private fun Any?.isIndexable(): Boolean =
+    this is String || this is Boolean || this is List<*>
@@ -6,55 +6,174 @@
 
 package com.github.pvoid.androidbp.blueprint
 
-import com.github.pvoid.androidbp.blueprint.parser.BlueprintParser
-import com.github.pvoid.androidbp.blueprint.parser.toBlueprints
+import com.github.pvoid.androidbp.blueprint.parser.BlueprintEvaluator
 import com.github.pvoid.androidbp.idea.LOG
 import com.github.pvoid.androidbp.idea.project.guessAospRoot
-import com.intellij.lang.LanguageParserDefinitions
-import com.intellij.lang.PsiBuilder
-import com.intellij.lang.PsiBuilderFactory
-import com.intellij.lexer.FlexAdapter
-import com.intellij.openapi.application.ApplicationManager
+import com.github.benmanes.caffeine.cache.Cache
+import com.github.benmanes.caffeine.cache.Caffeine
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.components.service
 import com.intellij.openapi.project.Project
-import com.intellij.openapi.util.Computable
 import com.intellij.openapi.vfs.VirtualFileManager
 import com.intellij.openapi.vfs.VirtualFileSystem
-import com.intellij.psi.impl.source.tree.FileElement
 import java.io.File
 import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentSkipListMap
 
-private val TABLES = mutableMapOf<Project, BlueprintsTable>()
+private const val MAX_CACHED_MODULES = 20_000L
 
-private val DUMNMY = BlueprintElementType("DUMMY")
+/**
+ * Module index of the AOSP tree. Readers never block: all the maps are concurrent and a full
+ * update swaps the whole state at once. Writers are serialized and touch only entries of
+ * the file they update
+ */
+@Service(Service.Level.PROJECT)
+class BlueprintsTable(
+    val aospRoot: File?
+) : Disposable {
+    constructor(project: Project) : this(project.guessAospRoot())
+
+    /**
+     * What the table knows about a build file. Kept for every file, so a file is compared
+     * with the content its modules come from even when they are not cached
+     */
+    private class FileEntry(
+        val timestamp: Long,
+        val size: Long,
+        val hash: Long,
+        val includes: Map<File, Long>,
+        val names: Set<String>
+    ) {
+        constructor(record: BlueprintsFileRecord) : this(
+            record.timestamp, record.size, record.hash, record.includes, record.blueprints.mapTo(mutableSetOf()) { it.name }
+        )
 
-private class BlueprintsTableCacheItem(
-    val timestamp: Long,
-    val blueprints: List<Blueprint>
-)
+        fun isUpToDate(file: File): Boolean {
+            return file.lastModified() == timestamp && file.length() == size && areIncludesUpToDate()
+        }
 
-class BlueprintsTable(project: Project) {
+        fun isSameContent(size: Long, hash: Long): Boolean {
+            return this.size == size && this.hash == hash && areIncludesUpToDate()
+        }
+
+        fun withTimestamp(timestamp: Long) = FileEntry(timestamp, size, hash, includes, names)
+
+        private fun areIncludesUpToDate(): Boolean = includes.all { (include, timestamp) -> include.lastModified() == timestamp }
+    }
 
-    private val aospRoot: File? = project.guessAospRoot()
+    private class State {
+        val blueprints = ConcurrentHashMap<String, File>()
+
+        // Build file to what is known about it. Sorted, so files of a folder are a range
+        val files = ConcurrentSkipListMap<File, FileEntry>()
+
+        // Parsed files are re-read on demand, so only the recently used ones are kept
+        val cache: Cache<File, List<Blueprint>> = Caffeine.newBuilder()
+            .maximumWeight(MAX_CACHED_MODULES)
+            .weigher<File, List<Blueprint>> { _, blueprints -> blueprints.size }
+            .build()
+
+        // Module name to the names of modules it references and the reverse of it
+        val references = ConcurrentHashMap<String, Set<String>>()
+
+        val dependents = ConcurrentHashMap<String, MutableSet<String>>()
+
+        // Stubs, java and HIDL java names of modules to the modules
+        val aliases = ConcurrentHashMap<String, String>()
+    }
 
-    private var blueprints = emptyMap<String, File>()
+    @Volatile
+    private var state = State()
 
-    private val cache = mutableMapOf<File, BlueprintsTableCacheItem>()
+    private val writeLock = Any()
 
-    fun update(blueprints: Map<String, File>) {
-        synchronized(this) {
-            this.blueprints = blueprints
+    // Modules changed since the last sync
+    private val changes: MutableSet<String> = ConcurrentHashMap.newKeySet()
+
+    // Per-file updates made while a full update is parsed, they are applied again on top of it
+    private var journal: MutableList<() -> Unit>? = null
+
+    // Changes the full update being parsed already includes
+    private var journalStart: Set<String> = emptySet()
+
+    /**
+     * Marks the start of parsing for the next full update. Files updated after that point
+     * are updated again once the full update is applied, so their changes are not lost
+     */
+    fun beginUpdate() = synchronized(writeLock) {
+        journal = mutableListOf()
+        journalStart = changes.toSet()
+    }
+
+    fun update(records: Collection<BlueprintsFileRecord>) {
+        val state = State()
+        records.forEach { record ->
+            record.blueprints.forEach {
+                state.blueprints[it.name] = record.file
+                state.addAliases(it.name)
+            }
+            if (record.blueprints.isNotEmpty()) {
+                state.files[record.file] = FileEntry(record)
+                state.cache.put(record.file, record.blueprints)
+            }
+        }
+
+        records.forEach { record ->
+            record.blueprints.forEach { state.link(it) }
         }
+
+        synchronized(writeLock) {
+            this.state = state
+
+            val replay = journal
+            if (replay == null) {
+                changes.clear()
+            } else {
+                changes.removeAll(journalStart)
+                journal = null
+                journalStart = emptySet()
+                replay.forEach { it() }
+            }
+        }
+    }
+
+    fun hasChanges(): Boolean = changes.isNotEmpty()
+
+    /**
+     * Returns names of modules changed since the previous call and forgets them
+     */
+    fun takeChanges(): Set<String> = changes.toSet().also {
+        changes.removeAll(it)
     }
 
-    fun availableBlueprints(): Collection<String> = synchronized(this) {
-        blueprints.keys.toList()
+    /**
+     * Returns names of all modules which directly or transitively reference any of the modules
+     */
+    fun impactOf(names: Collection<String>): Set<String> {
+        val state = state
+        val result = mutableSetOf<String>()
+        val queue = ArrayDeque<String>()
+        names.mapTo(queue) { state.fixUpName(it) }
+
+        while (queue.isNotEmpty()) {
+            state.dependents[queue.removeFirst()]?.forEach { dependent ->
+                if (result.add(dependent)) {
+                    queue.addLast(dependent)
+                }
+            }
+        }
+
+        return result
     }
 
+    fun availableBlueprints(): Collection<String> = state.blueprints.keys.toList()
+
     operator fun get(name: String): Blueprint? {
-        val fixedName = fixUpName(name)
-        val file =  synchronized(this) {
-            blueprints[fixedName]
-        } ?: return null
+        val state = state
+        val fixedName = state.fixUpName(name)
+        val file = state.blueprints[fixedName] ?: return null
 
         return parse(file).firstOrNull { blueprint ->
             blueprint.name == fixedName
@@ -66,11 +185,11 @@ class BlueprintsTable(project: Project) {
             return emptyList()
         }
 
-        val timestamp = file.lastModified()
-        synchronized(this) {
-            val record = cache[file]
-            if (record?.timestamp == timestamp) {
-                return record.blueprints
+        val state = state
+        val entry = state.files[file]
+        if (entry?.isUpToDate(file) == true) {
+            state.cache.getIfPresent(file)?.let {
+                return it
             }
         }
 
@@ -78,60 +197,213 @@ class BlueprintsTable(project: Project) {
             return emptyList()
         }
 
-        return (if (file.extension == Blueprint.DEFAULT_EXTENSION) {
-            parse(aospRoot, file, mutableListOf())
-        } else {
-            Makefile.parse(file, aospRoot)
-        }).also { blueprints ->
-            if (blueprints.isNotEmpty()) {
-                synchronized(this) {
-                    cache[file] = BlueprintsTableCacheItem(timestamp, blueprints)
-                }
-            }
+        // A file changed since the table saw it is cached only by the update, so the
+        // update still compares with the modules the table has
+        val record = read(aospRoot, file)
+        if (record.blueprints.isNotEmpty() && entry != null && entry.hash == record.hash && entry.size == record.size) {
+            state.cache.put(file, record.blueprints)
         }
+        return record.blueprints
     }
 
-    fun update(file: File) {
-        if (aospRoot == null) {
-            return
+    /**
+     * Reads the file unless it has the same content the modules of the table come from
+     * @return the new record of the file or null if its content didn't change
+     */
+    fun read(file: File): BlueprintsFileRecord? {
+        val aospRoot = aospRoot ?: return null
+        val state = state
+        val entry = state.files[file]
+        if (entry?.isUpToDate(file) == true) {
+            return null
+        }
+
+        val timestamp = file.lastModified()
+        val size = file.length()
+        val content = try {
+            file.readBytes()
+        } catch (e: IOException) {
+            LOG.error(e)
+            return BlueprintsFileRecord(file, timestamp, size, 0, emptyList(), emptyList())
+        }
+
+        // Touched but not changed, only the timestamp is refreshed
+        val hash = ContentHash.of(content)
+        if (entry != null && entry.isSameContent(content.size.toLong(), hash)) {
+            state.files.replace(file, entry, entry.withTimestamp(timestamp))
+            return null
         }
 
-        val blueprints = parse(aospRoot, file, mutableListOf())
-        synchronized(this) {
+        return parse(aospRoot, file, timestamp, size, hash, content)
+    }
+
+    /**
+     * Parses the file again and updates the modules it defines
+     * @return names of modules which were added, removed or changed
+     */
+    fun update(file: File): Set<String> = read(file)?.let(::update) ?: emptySet()
+
+    /**
+     * Replaces modules of the record's file with the ones from the record
+     * @return names of modules which were added, removed or changed
+     */
+    fun update(record: BlueprintsFileRecord): Set<String> = synchronized(writeLock) {
+        journal?.add { update(record) }
+
+        val state = state
+        val file = record.file
+        val blueprints = record.blueprints
+        val entry = state.files[file]
+
+        // Same content, only the timestamp is refreshed
+        if (entry != null && entry.size == record.size && entry.hash == record.hash && entry.includes == record.includes) {
+            state.files[file] = entry.withTimestamp(record.timestamp)
             if (blueprints.isNotEmpty()) {
-                cache[file] = BlueprintsTableCacheItem(file.lastModified(), blueprints)
-            } else {
-                cache.remove(file)
+                state.cache.put(file, blueprints)
+            }
+            return@synchronized emptySet()
+        }
+
+        // Modules which are not cached any more can't be compared, they are all changed
+        val previous = state.cache.getIfPresent(file) ?: emptyList()
+        val updated = FileEntry(record)
+        val removed = entry?.names?.minus(updated.names) ?: emptySet()
+        val changed = removed.toMutableSet()
+
+        blueprints.forEach { blueprint ->
+            val old = previous.firstOrNull { it.name == blueprint.name }
+            if (old == null || !old.isSameAs(blueprint)) {
+                changed.add(blueprint.name)
+            }
+        }
+        changes.addAll(changed)
+
+        // New modules are registered before the gone ones are dropped, so readers
+        // never miss a module which stays in the file
+        entry?.names?.filter { state.blueprints[it] == file }?.forEach { state.unlink(it) }
+        blueprints.forEach {
+            state.blueprints[it.name] = file
+            state.addAliases(it.name)
+        }
+        removed.forEach {
+            if (state.blueprints.remove(it, file)) {
+                state.removeAliases(it)
             }
+        }
+        blueprints.forEach { state.link(it) }
+
+        if (blueprints.isNotEmpty()) {
+            state.files[file] = updated
+            state.cache.put(file, blueprints)
+        } else {
+            state.files.remove(file)
+            state.cache.invalidate(file)
+        }
+
+        changed
+    }
 
-            val newList = mutableMapOf<String, File>()
-            this.blueprints.asSequence().filterNot { (_, src) ->
-                src == file
-            }.forEach { (name, src) ->
-                newList[name] = src
+    /**
+     * Drops modules of the build file or of all build files inside the folder
+     * @return names of removed modules
+     */
+    fun remove(path: File): Set<String> = synchronized(writeLock) {
+        journal?.add { remove(path) }
+
+        val state = state
+        val prefix = path.path + File.separator
+        val removed = mutableSetOf<String>()
+
+        // Paths inside the folder sort right after it and before the next possible sibling
+        val end = File(path.path + (File.separatorChar + 1))
+        state.files.subMap(path, true, end, false).keys.filter { file ->
+            file == path || file.path.startsWith(prefix)
+        }.forEach { file ->
+            state.cache.invalidate(file)
+            state.files.remove(file)?.names?.forEach { name ->
+                if (state.blueprints.remove(name, file)) {
+                    state.removeAliases(name)
+                    state.unlink(name)
+                    removed.add(name)
+                }
             }
+        }
+
+        changes.addAll(removed)
+        removed
+    }
 
-            blueprints.forEach {
-                newList[it.name] = file
+    override fun dispose() {
+        synchronized(writeLock) {
+            state.cache.invalidateAll()
+            state = State()
+            changes.clear()
+            journal = null
+        }
+    }
+
+    private fun State.link(blueprint: Blueprint) {
+        val targets = blueprint.references().mapTo(mutableSetOf()) { fixUpName(it) }
+        references[blueprint.name] = targets
+        targets.forEach { target ->
+            dependents.computeIfAbsent(target) { ConcurrentHashMap.newKeySet() }.add(blueprint.name)
+        }
+    }
+
+    private fun State.unlink(name: String) {
+        references.remove(name)?.forEach { target ->
+            dependents[target]?.let {
+                it.remove(name)
+                if (it.isEmpty()) {
+                    dependents.remove(target, it)
+                }
             }
+        }
+    }
+
+    private fun State.fixUpName(name: String): String {
+        if (blueprints.containsKey(name)) {
+            return name
+        }
+        return aliases[name] ?: aliasTarget(name)
+    }
 
-            this.blueprints = newList
+    private fun State.addAliases(name: String) {
+        aliasesOf(name).forEach { aliases[it] = name }
+    }
+
+    private fun State.removeAliases(name: String) {
+        aliasesOf(name).forEach { aliases.remove(it, name) }
+    }
+
+    /**
+     * Names the module can be referenced by besides its own one
+     */
+    private fun aliasesOf(name: String): List<String> {
+        val result = mutableListOf("$name.stubs", "$name-java")
+        val version = name.lastIndexOf('@')
+        if (version != -1) {
+            result.add("${name.substring(0, version)}-V${name.substring(version + 1)}-java")
         }
+        return result.filter { aliasTarget(it) == name }
     }
 
-    private fun fixUpName(name: String): String {
+    /**
+     * Name of the module the alias points to, the name itself if it's not an alias
+     */
+    private fun aliasTarget(name: String): String {
         // Convert stubs to real link
-        if (name.endsWith(".stubs") && !blueprints.containsKey(name)) {
+        if (name.endsWith(".stubs")) {
             return name.dropLast(6)
         }
 
         // Convert java aidls or hidl to a real link
         // TODO: Add -java-constants support
-        if (name.endsWith("-java") && !blueprints.containsKey(name)) {
+        if (name.endsWith("-java")) {
             var drop = 5
             var version: String? = null
             // Check if it's a link to HIDL
-            val pos = name.asSequence().take(name.length - drop).indexOfLast { it == '-' }
+            val pos = name.lastIndexOf('-', name.length - drop - 1)
             if (pos != -1 && name[pos + 1] == 'V') {
                 version = name.substring(pos + 2, name.length - drop)
                 if (version.all { it.isDigit() || it == '.' }) {
@@ -152,39 +424,44 @@ class BlueprintsTable(project: Project) {
     }
 
     companion object {
-        fun getInstance(project: Project): BlueprintsTable {
-            return TABLES.getOrPut(project) {
-                BlueprintsTable(project)
-            }
-        }
+        fun getInstance(project: Project): BlueprintsTable = project.service()
 
-        fun parse(aospRoot: File, file: File, extra: MutableList<File>?): List<Blueprint> {
-            LOG.info("Processing file: $file")
+        /**
+         * Reads the file unless the previous record of it is still valid. A file with a new
+         * timestamp but the same content and untouched includes keeps modules of the previous record
+         */
+        fun read(aospRoot: File, file: File, previous: BlueprintsFileRecord? = null): BlueprintsFileRecord {
+            if (previous?.isUpToDate() == true) {
+                return previous
+            }
 
-            val parser = BlueprintParser()
-            val text = try {
-                file.readText()
+            val timestamp = file.lastModified()
+            val size = file.length()
+            val content = try {
+                file.readBytes()
             } catch (e: IOException) {
                 LOG.error(e)
-                return emptyList()
+                return BlueprintsFileRecord(file, timestamp, size, 0, emptyList(), emptyList())
+            }
+
+            val hash = ContentHash.of(content)
+            if (previous != null && previous.size == content.size.toLong() && previous.hash == hash && previous.areIncludesUpToDate()) {
+                return BlueprintsFileRecord(file, timestamp, size, hash, previous.blueprints, previous.extra, previous.includes)
             }
-            val builder = createPsiBuilder(text)
 
-            val element = FileElement(DUMNMY, text)
-            parser.parse(element.elementType, builder) as? FileElement
-            return builder.treeBuilt.toBlueprints(aospRoot, File(file.parentFile.path), extra)
+            return parse(aospRoot, file, timestamp, size, hash, content)
         }
 
-        private fun createPsiBuilder(text: String): PsiBuilder {
-            return ApplicationManager.getApplication().runReadAction(
-                Computable {
-                    PsiBuilderFactory.getInstance().createBuilder(
-                        LanguageParserDefinitions.INSTANCE.forLanguage(BlueprintLanguage.INSTANCE),
-                        FlexAdapter(BlueprintLexer()),
-                        text
-                    )
-                }
-            )
+        private fun parse(aospRoot: File, file: File, timestamp: Long, size: Long, hash: Long, content: ByteArray): BlueprintsFileRecord {
+            val extra = mutableListOf<File>()
+            val includes = mutableMapOf<File, Long>()
+            val blueprints = if (file.extension == Blueprint.DEFAULT_EXTENSION) {
+                LOG.info("Processing file: $file")
+                BlueprintEvaluator(String(content)).evaluate(aospRoot, File(file.parentFile.path), extra)
+            } else {
+                Makefile.parse(file, aospRoot, content, includes)
+            }
+            return BlueprintsFileRecord(file, timestamp, size, hash, blueprints, extra, includes)
         }
     }
 }
\ No newline at end of file
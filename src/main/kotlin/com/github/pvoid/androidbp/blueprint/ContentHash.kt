@@ -0,0 +1,81 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.github.pvoid.androidbp.blueprint
+
+private const val PRIME_1 = -0x61c8864e7a143579L // 0x9E3779B185EBCA87
+private const val PRIME_2 = -0x3d4d51c2d82b14b1L // 0xC2B2AE3D27D4EB4F
+private const val PRIME_3 = 0x165667B19E3779F9L
+private const val PRIME_4 = -0x7a1435883d4d519dL // 0x85EBCA77C2B2AE63
+private const val PRIME_5 = 0x27D4EB2F165667C5L
+
+/**
+ * XXH64 of build file content. Tells files which were only touched from really changed ones
+ */
+object ContentHash {
+    fun of(data: ByteArray, seed: Long = 0): Long {
+        val length = data.size
+        var offset = 0
+        var hash: Long
+
+        if (length >= 32) {
+            var v1 = seed + PRIME_1 + PRIME_2
+            var v2 = seed + PRIME_2
+            var v3 = seed
+            var v4 = seed - PRIME_1
+
+            while (offset <= length - 32) {
+                v1 = round(v1, data.longAt(offset))
+                v2 = round(v2, data.longAt(offset + 8))
+                v3 = round(v3, data.longAt(offset + 16))
+                v4 = round(v4, data.longAt(offset + 24))
+                offset += 32
+            }
+
+            hash = v1.rotateLeft(1) + v2.rotateLeft(7) + v3.rotateLeft(12) + v4.rotateLeft(18)
+            hash = merge(hash, v1)
+            hash = merge(hash, v2)
+            hash = merge(hash, v3)
+            hash = merge(hash, v4)
+        } else {
+            hash = seed + PRIME_5
+        }
+
+        hash += length.toLong()
+
+        while (offset <= length - 8) {
+            hash = (hash xor round(0, data.longAt(offset))).rotateLeft(27) * PRIME_1 + PRIME_4
+            offset += 8
+        }
+
+        if (offset <= length - 4) {
+            hash = (hash xor (data.intAt(offset) * PRIME_1)).rotateLeft(23) * PRIME_2 + PRIME_3
+            offset += 4
+        }
+
+        while (offset < length) {
+            hash = (hash xor ((data[offset].toLong() and 0xff) * PRIME_5)).rotateLeft(11) * PRIME_1
+            ++offset
+        }
+
+        hash = (hash xor (hash ushr 33)) * PRIME_2
+        hash = (hash xor (hash ushr 29)) * PRIME_3
+        return hash xor (hash ushr 32)
+    }
+
+    private fun round(acc: Long, input: Long): Long = (acc + input * PRIME_2).rotateLeft(31) * PRIME_1
+
+    private fun merge(acc: Long, value: Long): Long = (acc xor round(0, value)) * PRIME_1 + PRIME_4
+
+    private fun ByteArray.intAt(offset: Int): Long {
+        return (this[offset].toLong() and 0xff) or
+                ((this[offset + 1].toLong() and 0xff) shl 8) or
+                ((this[offset + 2].toLong() and 0xff) shl 16) or
+                ((this[offset + 3].toLong() and 0xff) shl 24)
+    }
+
+    private fun ByteArray.longAt(offset: Int): Long = intAt(offset) or (intAt(offset + 4) shl 32)
+}
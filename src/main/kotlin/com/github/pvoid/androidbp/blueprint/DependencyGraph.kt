@@ -0,0 +1,251 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.github.pvoid.androidbp.blueprint
+
+import com.github.pvoid.androidbp.idea.LOG
+import java.util.BitSet
+
+private const val MISSING = -1
+
+private val ANDROID_TYPES = setOf(BlueprintType.AndroidApp, BlueprintType.AndroidLibrary, BlueprintType.AndroidImport)
+
+/**
+ * Module links resolved once for a single sync. Modules become int indexed nodes on the first
+ * use, their links are kept in adjacency arrays with a kind mask per edge. Every name is
+ * resolved through the table only once, so all the walks of the sync share the work.
+ * Not thread safe
+ */
+class DependencyGraph(
+    private val table: BlueprintsTable
+) {
+    private val nodes = mutableListOf<Blueprint>()
+
+    // Module name to its node and names used in links to the nodes they resolved to
+    private val ids = mutableMapOf<String, Int>()
+
+    private val resolved = mutableMapOf<String, Int>()
+
+    private val aliases = mutableListOf<MutableSet<String>>()
+
+    private val targets = mutableListOf<IntArray?>()
+
+    private val kinds = mutableListOf<ByteArray?>()
+
+    /**
+     * Returns the node of the module registering it if needed
+     */
+    fun add(blueprint: Blueprint): Int {
+        return ids.getOrPut(blueprint.name) {
+            nodes.add(blueprint)
+            aliases.add(mutableSetOf(blueprint.name))
+            targets.add(null)
+            kinds.add(null)
+            nodes.size - 1
+        }
+    }
+
+    /**
+     * Modules the module directly links with by links of the given kinds
+     */
+    fun linksOf(blueprint: Blueprint, mask: Int): List<Blueprint> {
+        val result = mutableListOf<Blueprint>()
+        links(add(blueprint), mask) { result.add(nodes[it]) }
+        return result
+    }
+
+    /**
+     * Walks java dependencies of the modules and everything they link with dynamically.
+     * Links of modules which are not affected are taken from the previous closure, so only
+     * the affected part of it is resolved again
+     * @param previous closure of the same modules walked by the previous sync
+     * @param affected names of modules changed since the previous closure, or referencing changed ones
+     */
+    fun javaDependencies(
+        roots: Collection<Blueprint>,
+        previous: JavaClosure? = null,
+        affected: Set<String> = emptySet()
+    ): JavaClosure {
+        val stack = ArrayDeque<Int>()
+        val rootNodes = roots.map(::add)
+        rootNodes.forEach { push(stack, it, DYNAMIC or STATIC or STANDARD) }
+        rootNodes.forEach { push(stack, it, DEFAULTS) }
+
+        val walked = mutableMapOf<String, List<String>>()
+        val order = walk(stack) { node ->
+            val name = nodes[node].name
+            val kept = previous?.takeIf { name !in affected }?.links?.get(name)
+            if (kept != null) {
+                kept.forEach { target ->
+                    previous?.modules?.get(target)?.let { stack.addLast(add(it)) }
+                }
+                walked[name] = kept
+            } else {
+                val targets = mutableListOf<String>()
+                links(node, DYNAMIC or DEFAULTS) {
+                    stack.addLast(it)
+                    targets.add(nodes[it].name)
+                }
+                walked[name] = targets
+            }
+        }
+
+        val modules = mutableMapOf<String, Blueprint>()
+        val dependencies = mutableMapOf<String, Blueprint>()
+        order.forEach { node ->
+            val blueprint = nodes[node]
+            modules[blueprint.name] = blueprint
+            aliases[node].forEach { dependencies[it] = blueprint }
+            previous?.aliases?.get(blueprint.name)?.forEach { dependencies[it] = blueprint }
+        }
+        return JavaClosure(modules, walked, dependencies)
+    }
+
+    /**
+     * Collects android modules the modules depend on. Direct dependencies are taken
+     * whatever their type is. Modules are listed in the order they were first reached,
+     * callers use the list as a set of packages, so no topological order is kept
+     * @return modules with the kind of link they were reached with last
+     */
+    fun androidDependencies(roots: Collection<Blueprint>): List<Pair<DependenciesScope, Blueprint>> {
+        val result = linkedMapOf<Int, DependenciesScope>()
+        val queue = ArrayDeque<Pair<Int, DependenciesScope>>()
+
+        // Names are taken in the order of each scope's list, it decides which scope wins
+        fun enqueue(blueprint: Blueprint, scope: DependenciesScope, filter: (Int) -> Boolean) {
+            blueprint.dependencies(scope).forEach { name ->
+                val target = resolve(name)
+                if (target != MISSING && filter(target)) {
+                    queue.addLast(target to scope)
+                }
+            }
+        }
+
+        roots.forEach { enqueue(it, DependenciesScope.Dynamic) { true } }
+        roots.forEach { enqueue(it, DependenciesScope.Static) { true } }
+
+        // Modules are queued until they are visited once, every visit overrides the scope
+        val isNewAndroid = { node: Int -> !result.containsKey(node) && nodes[node].type in ANDROID_TYPES }
+        while (queue.isNotEmpty()) {
+            val (node, scope) = queue.removeFirst()
+            enqueue(nodes[node], DependenciesScope.Dynamic, isNewAndroid)
+            enqueue(nodes[node], DependenciesScope.Static, isNewAndroid)
+            result[node] = scope
+        }
+
+        return result.map { (node, scope) -> scope to nodes[node] }
+    }
+
+    /**
+     * Depth first walk, nodes are returned in the order they were reached
+     * @param expand pushes nodes the node links with to the stack
+     */
+    private inline fun walk(stack: ArrayDeque<Int>, expand: (Int) -> Unit): List<Int> {
+        val visited = BitSet(nodes.size)
+        val result = mutableListOf<Int>()
+
+        while (stack.isNotEmpty()) {
+            val node = stack.removeLast()
+            if (visited.get(node)) {
+                continue
+            }
+
+            visited.set(node)
+            result.add(node)
+            expand(node)
+        }
+
+        return result
+    }
+
+    private fun push(stack: ArrayDeque<Int>, node: Int, mask: Int) {
+        links(node, mask, stack::addLast)
+    }
+
+    private inline fun links(node: Int, mask: Int, action: (Int) -> Unit) {
+        val targets = targets[node] ?: resolveLinks(node)
+        val kinds = kinds[node]!!
+        for (i in targets.indices) {
+            if (kinds[i].toInt() and mask != 0) {
+                action(targets[i])
+            }
+        }
+    }
+
+    private fun resolveLinks(node: Int): IntArray {
+        val blueprint = nodes[node]
+        val links = linkedMapOf<Int, Int>()
+        val dynamic = blueprint.dependencies(DependenciesScope.Dynamic)
+        val static = blueprint.dependencies(DependenciesScope.Static)
+
+        fun link(name: String, kind: Int) {
+            val target = resolve(name)
+            if (target != MISSING) {
+                links[target] = (links[target] ?: 0) or kind
+            }
+        }
+
+        // Keep the order of the declarations, walks depend on it
+        blueprint.dependencies(DependenciesScope.All).forEach { name ->
+            var kind = 0
+            if (name in dynamic) kind = kind or DYNAMIC
+            if (name in static) kind = kind or STATIC
+            link(name, if (kind == 0) STANDARD else kind)
+        }
+        blueprint.defaults().forEach { link(it, DEFAULTS) }
+        if (blueprint.isJavaProject() || blueprint.isAndroidProject()) {
+            blueprint.sourceModules().forEach { link(it, SOURCE) }
+        }
+
+        val result = links.keys.toIntArray()
+        kinds[node] = ByteArray(result.size) { links.getValue(result[it]).toByte() }
+        targets[node] = result
+        return result
+    }
+
+    private fun resolve(name: String): Int {
+        resolved[name]?.let {
+            return it
+        }
+
+        val blueprint = table[name]
+        val node = if (blueprint == null) {
+            LOG.warn("Dependency $name is not found")
+            MISSING
+        } else {
+            add(blueprint).also { aliases[it].add(name) }
+        }
+
+        resolved[name] = node
+        return node
+    }
+
+    companion object {
+        // Kinds of links
+        const val DYNAMIC = 1
+        const val STATIC = 2
+        const val STANDARD = 4
+        const val DEFAULTS = 8
+        const val SOURCE = 16
+    }
+}
+
+/**
+ * Java dependencies of a module with the links they were walked by
+ */
+class JavaClosure internal constructor(
+    internal val modules: Map<String, Blueprint>,
+    internal val links: Map<String, List<String>>,
+    /**
+     * Dependency name to the module it refers to
+     */
+    val dependencies: Map<String, Blueprint>
+) {
+    // Module name to the names it's referenced by
+    internal val aliases: Map<String, List<String>> by lazy {
+        dependencies.entries.groupBy({ it.value.name }, { it.key })
+    }
+}
@@ -9,7 +9,7 @@ package com.github.pvoid.androidbp.blueprint
 import com.github.pvoid.androidbp.idea.LOG
 import com.intellij.openapi.util.io.FileUtil
 import java.io.File
-import java.io.FileReader
+import java.util.concurrent.ConcurrentHashMap
 
 private enum class VariableAction {
     Create,
@@ -25,6 +25,15 @@ private class BlueprintBuilder {
         this.type = type
     }
 
+    companion object {
+        private val VARIABLES = arrayOf(
+            "LOCAL_MODULE", "LOCAL_PACKAGE_NAME", "LOCAL_STATIC_ANDROID_LIBRARIES", "LOCAL_STATIC_JAVA_LIBRARIES",
+            "LOCAL_JAVA_LIBRARIES", "LOCAL_SRC_FILES", "LOCAL_RESOURCE_DIR"
+        )
+
+        fun accepts(name: CharSequence): Boolean = VARIABLES.any { it.contentEquals(name) }
+    }
+
     fun param(name: String, value: String, action: VariableAction) {
         when (name) {
             "LOCAL_MODULE" -> {
@@ -142,93 +151,185 @@ private class BlueprintBuilder {
             type = BlueprintType.AndroidLibrary
         }
 
-        return Blueprint(name, type, values, path, relativePath, true)
+        return Blueprint(name.interned(), type.interned(), BlueprintMembers.from(values), path, relativePath.interned(), true)
     }
 }
 
 object Makefile {
     const val DEFAULT_NAME = "Android.mk"
 
-    private fun readMakefile(file: File, aospRoot: File, output: MutableList<String>) {
-        val current = StringBuilder()
-
-        FileReader(file).use { reader ->
-            reader.readLines().asSequence()
-                .map { it.trim() }
-                .forEach { line ->
-                    if (line.endsWith("\\")) {
-                        current.append(line.subSequence(0, line.length - 1))
-                    } else {
-                        current.append(line)
-
-                        if (current.startsWith("include ")) {
-                            val value = current.substring(8).trimStart()
-                            if (value[0] == '$') {
-                                output.add(current.toString())
-                            } else {
-                                val include = File(aospRoot, value)
-                                if (include.exists()) {
-                                    readMakefile(include, aospRoot, output)
-                                }
-                            }
-                        } else {
-                            output.add(current.toString())
-                        }
-                        current.clear()
+    /**
+     * Logical lines of a makefile with continuations joined, includes are not expanded
+     */
+    private class LogicalLines(
+        val timestamp: Long,
+        val lines: List<CharSequence>
+    )
+
+    // The same makefiles are included by most of Android.mk files, so they are read once
+    private val includes = ConcurrentHashMap<File, LogicalLines>()
+
+    /**
+     * Splits the file into trimmed logical lines. Lines are views of the file content, only
+     * lines joined from continuations are copied
+     */
+    private fun readLogicalLines(bytes: ByteArray): List<CharSequence> {
+        val output = mutableListOf<CharSequence>()
+        var continued: StringBuilder? = null
+        var start = 0
+
+        while (start < bytes.size) {
+            var end = start
+            while (end < bytes.size && bytes[end] != NEW_LINE) {
+                ++end
+            }
+            val next = end + 1
+
+            while (start < end && bytes[start].isWhitespace()) {
+                ++start
+            }
+            while (end > start && bytes[end - 1].isWhitespace()) {
+                --end
+            }
+
+            val line = MakefileChars(bytes, start, end)
+            when {
+                end > start && bytes[end - 1] == BACKSLASH -> {
+                    (continued ?: StringBuilder().also { continued = it }).append(line.subSequence(0, line.length - 1).toString())
+                }
+                continued != null -> {
+                    output.add(continued.append(line.toString()).toString())
+                    continued = null
+                }
+                else -> output.add(line)
+            }
+
+            start = next
+        }
+
+        return output
+    }
+
+    private fun readInclude(file: File, timestamp: Long): List<CharSequence> {
+        includes[file]?.takeIf { it.timestamp == timestamp }?.let {
+            return it.lines
+        }
+
+        return readLogicalLines(file.readBytes()).also {
+            includes[file] = LogicalLines(timestamp, it)
+        }
+    }
+
+    private fun forEachLine(
+        lines: List<CharSequence>,
+        aospRoot: File,
+        visited: MutableMap<File, Long>?,
+        action: (CharSequence) -> Unit
+    ) {
+        lines.forEach { line ->
+            if (line.startsWith(INCLUDE)) {
+                val value = line.subSequence(INCLUDE.length, line.length).trimStart(Char::isSpace)
+                if (value.startsWith('$')) {
+                    action(line)
+                } else {
+                    // Missing includes are kept too, the record goes stale once they appear
+                    val include = File(aospRoot, value.toString())
+                    val timestamp = include.lastModified()
+                    visited?.put(include, timestamp)
+                    if (include.isFile) {
+                        forEachLine(readInclude(include, timestamp), aospRoot, visited, action)
                     }
                 }
+            } else {
+                action(line)
+            }
         }
     }
 
-    fun parse(file: File, aospRoot: File): List<Blueprint> {
-        val lines = mutableListOf<String>()
+    /**
+     * Parses modules of the makefile
+     * @param includes receives expanded makefiles with their timestamps
+     */
+    fun parse(
+        file: File,
+        aospRoot: File,
+        content: ByteArray = file.readBytes(),
+        includes: MutableMap<File, Long>? = null
+    ): List<Blueprint> {
         val result = mutableListOf<Blueprint>()
         var blueprint = BlueprintBuilder()
         val path = file.parentFile
         val relativePath = FileUtil.getRelativePath(aospRoot, path) ?: return result
 
-        readMakefile(file, aospRoot, lines)
-
-        lines.filterNot {
-            it.isBlank() || it.startsWith('#')
-        }.forEach { line ->
-            if (line.startsWith("include ")) {
-                val subject = line.split(' ', limit = 2)
-                if (subject.size > 1) {
-                    when (subject[1].trim()) {
-                        "\$(CLEAR_VARS)" -> {
-                            blueprint.build(path, relativePath)?.let(result::add)
-                            blueprint = BlueprintBuilder()
-                        }
+        forEachLine(readLogicalLines(content), aospRoot, includes) { line ->
+            if (line.all(Char::isSpace) || line[0] == '#') {
+                return@forEachLine
+            }
 
-                        "\$(BUILD_STATIC_JAVA_LIBRARY)" -> blueprint.type(BlueprintType.JavaLibraryStatic)
-                        "\$(BUILD_PACKAGE)" -> blueprint.type(BlueprintType.AndroidApp)
-                        "\$(BUILD_HOST_JAVA_LIBRARY)" -> blueprint.type(BlueprintType.JavaLibraryHost)
-                    }
-                }
-            } else {
-                val variable = line.split("=", limit = 2)
-                if (variable.size == 2) {
-                    lateinit var action: VariableAction
-                    lateinit var name: String
-                    when {
-                        variable[0].last() == ':' -> {
-                            name = variable[0].dropLast(1).trimEnd()
-                            action = VariableAction.Create
-                        }
-                        variable[0].last() == '+' -> {
-                            name = variable[0].dropLast(1).trimEnd()
-                            action = VariableAction.Append
-                        }
-                        else -> {
-                            name = variable[0].trimEnd()
-                            action = VariableAction.Assign
-                        }
+            if (line.startsWith(INCLUDE)) {
+                val subject = line.subSequence(INCLUDE.length, line.length).trim(Char::isSpace)
+                when {
+                    subject.contentEquals("\$(CLEAR_VARS)") -> {
+                        blueprint.build(path, relativePath)?.let(result::add)
+                        blueprint = BlueprintBuilder()
                     }
-                    blueprint.param(name, variable[1].trim(), action)
+                    subject.contentEquals("\$(BUILD_STATIC_JAVA_LIBRARY)") -> blueprint.type(BlueprintType.JavaLibraryStatic)
+                    subject.contentEquals("\$(BUILD_PACKAGE)") -> blueprint.type(BlueprintType.AndroidApp)
+                    subject.contentEquals("\$(BUILD_HOST_JAVA_LIBRARY)") -> blueprint.type(BlueprintType.JavaLibraryHost)
                 }
+                return@forEachLine
+            }
+
+            // Only variables the builder knows are copied out of the line
+            val assignment = line.indexOf('=')
+            if (assignment <= 0) {
+                return@forEachLine
+            }
+
+            var nameEnd = assignment
+            val action = when (line[assignment - 1]) {
+                ':' -> VariableAction.Create.also { --nameEnd }
+                '+' -> VariableAction.Append.also { --nameEnd }
+                else -> VariableAction.Assign
+            }
+            val name = line.subSequence(0, nameEnd).trimEnd(Char::isSpace)
+            if (BlueprintBuilder.accepts(name)) {
+                val value = line.subSequence(assignment + 1, line.length).trim(Char::isSpace)
+                blueprint.param(name.toString(), value.toString(), action)
             }
         }
         return result
     }
 }
+
+private const val INCLUDE = "include "
+
+private const val NEW_LINE = '\n'.code.toByte()
+
+private const val BACKSLASH = '\\'.code.toByte()
+
+private fun Byte.isWhitespace(): Boolean = toInt() and 0xff <= ' '.code
+
+// Lines are views of UTF-8 bytes, Char.isWhitespace() would strip parts of multibyte characters
+private fun Char.isSpace(): Boolean = this <= ' '
+
+/**
+ * Region of makefile content. Syntax of makefiles is ASCII, so characters are single bytes and
+ * UTF-8 is decoded only when the region is copied to a string
+ */
+private class MakefileChars(
+    private val bytes: ByteArray,
+    private val start: Int,
+    private val end: Int
+) : CharSequence {
+    override val length: Int
+        get() = end - start
+
+    override fun get(index: Int): Char = (bytes[start + index].toInt() and 0xff).toChar()
+
+    override fun subSequence(startIndex: Int, endIndex: Int): CharSequence {
+        return MakefileChars(bytes, start + startIndex, start + endIndex)
+    }
+
+    override fun toString(): String = String(bytes, start, end - start, Charsets.UTF_8)
+}
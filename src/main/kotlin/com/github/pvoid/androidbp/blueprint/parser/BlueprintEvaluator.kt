@@ -0,0 +1,325 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.github.pvoid.androidbp.blueprint.parser
+
+import com.github.pvoid.androidbp.blueprint.Blueprint
+import java.io.File
+
+private class BlueprintSyntaxException(message: String) : RuntimeException(message)
+
+/**
+ * Standalone blueprint parser for bulk indexing. Works straight on the file text without
+ * building PSI, so it needs neither the application nor the read lock
+ */
+class BlueprintEvaluator(
+    private val text: CharSequence
+) {
+    private var pos = 0
+
+    private val variables = mutableMapOf<String, Any>()
+
+    fun evaluate(aospRoot: File, path: File, extra: MutableList<File>?): List<Blueprint> {
+        val result = mutableListOf<Blueprint>()
+
+        while (skipSpaces()) {
+            try {
+                val name = readIdentifier()
+                skipSpaces()
+                when (next()) {
+                    '{' -> Blueprint.create(name, readMembers('}'), path, aospRoot)?.let(result::add)
+                    '(' -> Blueprint.create(name, readMembers(')'), path, aospRoot)?.let(result::add)
+                    '=' -> variables[name] = readValue()
+                    '+' -> {
+                        expect('=')
+                        variables[name] = concat(variables[name], readValue())
+                    }
+                    else -> throw BlueprintSyntaxException("Unexpected statement $name")
+                }
+            } catch (e: BlueprintSyntaxException) {
+                skipStatement()
+            }
+        }
+
+        if (extra != null) {
+            (variables["build"] as? List<*>)?.filterIsInstance<String>()?.map { File(path, it) }?.forEach(extra::add)
+        }
+
+        return result
+    }
+
+    private fun readMembers(end: Char): Map<String, Any> {
+        val members = mutableMapOf<String, Any>()
+
+        while (true) {
+            skipSpaces()
+            if (peek() == end) {
+                ++pos
+                return members
+            }
+
+            val name = readIdentifier()
+            skipSpaces()
+            when (next()) {
+                ':', '=' -> try {
+                    members[name] = readValue()
+                } catch (e: BlueprintSyntaxException) {
+                    // Drop the broken member only, the rest of the object is still useful
+                    skipValue()
+                }
+                else -> throw BlueprintSyntaxException("Value of $name expected")
+            }
+
+            skipSpaces()
+            when (peek()) {
+                ',' -> ++pos
+                end -> continue
+                else -> throw BlueprintSyntaxException("Unexpected character in $name")
+            }
+        }
+    }
+
+    private fun readList(): List<Any> {
+        val items = mutableListOf<Any>()
+
+        while (true) {
+            skipSpaces()
+            if (peek() == ']') {
+                ++pos
+                return items
+            }
+
+            items.add(readValue())
+
+            skipSpaces()
+            when (peek()) {
+                ',' -> ++pos
+                ']' -> continue
+                else -> throw BlueprintSyntaxException("Unexpected character in list")
+            }
+        }
+    }
+
+    private fun readValue(): Any {
+        var value = readOperand()
+
+        while (true) {
+            skipSpaces()
+            // Make sure it's not the next variable appending
+            if (peek() != '+' || peek(1) == '=') {
+                return value
+            }
+            ++pos
+            value = concat(value, readOperand())
+        }
+    }
+
+    private fun readOperand(): Any {
+        skipSpaces()
+        val ch = peek()
+        return when {
+            ch == '"' || ch == '\'' || ch == '`' -> readString()
+            ch == '[' -> {
+                ++pos
+                readList()
+            }
+            ch == '{' -> {
+                ++pos
+                readMembers('}')
+            }
+            ch == '-' || ch.isDigit() -> readNumber()
+            ch.isIdentifierStart() -> {
+                val name = readIdentifier()
+                skipSpaces()
+                when {
+                    peek() == '(' -> {
+                        // Functions like select() can't be evaluated statically
+                        skipBalanced()
+                        Any()
+                    }
+                    name == "true" -> true
+                    name == "false" -> false
+                    else -> variables[name] ?: Any()
+                }
+            }
+            else -> throw BlueprintSyntaxException("Value expected")
+        }
+    }
+
+    private fun readString(): String {
+        val quote = next()
+        val start = pos
+        var builder: StringBuilder? = null
+
+        while (pos < text.length) {
+            val ch = text[pos]
+            when {
+                ch == quote -> {
+                    val value = builder?.toString() ?: text.subSequence(start, pos).toString()
+                    ++pos
+                    return value
+                }
+                ch == '\\' && quote != '`' -> {
+                    val current = builder ?: StringBuilder().append(text, start, pos).also { builder = it }
+                    ++pos
+                    when (val escaped = next()) {
+                        'n' -> current.append('\n')
+                        't' -> current.append('\t')
+                        else -> current.append(escaped)
+                    }
+                }
+                ch == '\n' && quote != '`' -> throw BlueprintSyntaxException("Unterminated string")
+                else -> {
+                    builder?.append(ch)
+                    ++pos
+                }
+            }
+        }
+
+        throw BlueprintSyntaxException("Unterminated string")
+    }
+
+    private fun readNumber(): Any {
+        val negative = peek() == '-'
+        if (negative) {
+            ++pos
+        }
+
+        var value = 0L
+        val start = pos
+        while (pos < text.length && text[pos].isDigit()) {
+            value = value * 10 + (text[pos] - '0')
+            ++pos
+        }
+
+        if (start == pos) {
+            throw BlueprintSyntaxException("Number expected")
+        }
+
+        val result = if (negative) -value else value
+        return if (result in Int.MIN_VALUE..Int.MAX_VALUE) result.toInt() else Any()
+    }
+
+    private fun readIdentifier(): String {
+        val start = pos
+        if (!peek().isIdentifierStart()) {
+            throw BlueprintSyntaxException("Identifier expected")
+        }
+
+        while (pos < text.length && (text[pos].isIdentifierStart() || text[pos].isDigit() || text[pos] == '-')) {
+            ++pos
+        }
+        return text.subSequence(start, pos).toString()
+    }
+
+    private fun concat(left: Any?, right: Any): Any = when {
+        left == null -> right
+        left is List<*> && right is List<*> -> left + right
+        left is String && right is String -> left + right
+        left is Int && right is Int -> left + right
+        left is Map<*, *> && right is Map<*, *> -> {
+            @Suppress("UNCHECKED_CAST")
+            (left as Map<String, Any>) + (right as Map<String, Any>)
+        }
+        else -> throw BlueprintSyntaxException("Can't concatenate values")
+    }
+
+    /**
+     * Skips white spaces and comments
+     * @return false if the end of the text is reached
+     */
+    private fun skipSpaces(): Boolean {
+        while (pos < text.length) {
+            val ch = text[pos]
+            when {
+                ch.isWhitespace() -> ++pos
+                ch == '/' && peek(1) == '/' -> {
+                    while (pos < text.length && text[pos] != '\n') {
+                        ++pos
+                    }
+                }
+                ch == '/' && peek(1) == '*' -> {
+                    val end = text.indexOf("*/", pos + 2)
+                    pos = if (end < 0) text.length else end + 2
+                }
+                else -> return true
+            }
+        }
+        return false
+    }
+
+    private fun skipBalanced() {
+        var depth = 0
+        while (pos < text.length) {
+            when (text[pos]) {
+                '(', '[', '{' -> ++depth
+                ')', ']', '}' -> if (--depth == 0) {
+                    ++pos
+                    return
+                }
+                '"', '\'', '`' -> {
+                    readString()
+                    continue
+                }
+            }
+            ++pos
+        }
+    }
+
+    /**
+     * Error recovery: moves to the end of the current value, i.e. to the next separator or
+     * the closing bracket of the enclosing object
+     */
+    private fun skipValue() {
+        var depth = 0
+        while (pos < text.length) {
+            when (text[pos]) {
+                '(', '[', '{' -> ++depth
+                ')', ']', '}' -> if (depth-- == 0) {
+                    return
+                }
+                ',' -> if (depth == 0) {
+                    return
+                }
+                '"', '\'', '`' -> {
+                    readString()
+                    continue
+                }
+            }
+            ++pos
+        }
+    }
+
+    /**
+     * Error recovery: moves to the next line starting with an identifier, statements usually start there
+     */
+    private fun skipStatement() {
+        while (pos < text.length) {
+            if (text[pos] == '\n' && peek(1).isIdentifierStart()) {
+                ++pos
+                return
+            }
+            ++pos
+        }
+    }
+
+    private fun expect(ch: Char) {
+        if (next() != ch) {
+            throw BlueprintSyntaxException("$ch expected")
+        }
+    }
+
+    private fun peek(offset: Int = 0): Char = if (pos + offset < text.length) text[pos + offset] else Char.MIN_VALUE
+
+    private fun next(): Char {
+        if (pos >= text.length) {
+            throw BlueprintSyntaxException("Unexpected end of file")
+        }
+        return text[pos++]
+    }
+}
+
+private fun Char.isIdentifierStart(): Boolean = this in 'a'..'z' || this in 'A'..'Z' || this == '_'
@@ -6,23 +6,14 @@
 
 package com.github.pvoid.androidbp.idea.project
 
-import com.android.SdkConstants
 import com.android.tools.idea.model.ClassJarProvider
 import com.android.tools.idea.projectsystem.ClassContent
 import com.android.tools.idea.projectsystem.ClassFileFinder
 import com.android.tools.idea.projectsystem.getModuleSystem
-import com.android.tools.idea.util.toIoFile
-import com.android.tools.idea.util.toVirtualFile
 import com.github.pvoid.androidbp.blueprint.Blueprint
 import com.github.pvoid.androidbp.blueprint.DependenciesScope
-import com.github.pvoid.androidbp.idea.LOG
 import com.intellij.openapi.module.Module
-import com.intellij.openapi.vfs.JarFileSystem
-import com.intellij.openapi.vfs.VfsUtil
-import com.intellij.openapi.vfs.VirtualFile
 import java.io.File
-import java.io.IOException
-import java.nio.file.Paths
 
 object BlueprintClassJarProvider : ClassJarProvider {
     private var jars = emptyList<File>()
@@ -45,67 +36,54 @@ object BlueprintClassJarProvider : ClassJarProvider {
     }
 }
 
+/**
+ * Output jars of the blueprints. Valid until the blueprints are replaced or the output
+ * paths are invalidated by a sync
+ */
+private class OutputJars(
+    private val blueprints: List<Blueprint>,
+    private val outputs: OutputPaths,
+    private val generation: Int,
+    val jars: List<File>
+) {
+    fun isUpToDate(blueprints: List<Blueprint>): Boolean {
+        return this.blueprints === blueprints && outputs.generation == generation
+    }
+}
+
 class BlueprintModuleClassFinder(
     private val module: Module,
 ) : ClassFileFinder {
+    @Volatile
+    private var jars: OutputJars? = null
+
     override fun findClassFile(fqcn: String): ClassContent? {
-        val aospPath = module.project.guessAospRoot() ?: return null
-        val rootPath = SoongTools.getOutputPath(aospPath)
         val moduleSystem = module.getModuleSystem() as? BlueprintModuleSystem ?: return null
+        val jars = getOutputJars(moduleSystem) ?: return null
 
-//        val logLines = mutableListOf("finder: Looking for $fqcn in module classes")
-
-        return moduleSystem.blueprints.filter {
-            it.isAndroidProject() || it.isJavaProject()
-        }.flatMap { blueprint ->
-            val result = mutableListOf<File>()
-
-            rootPath.getPath( "${blueprint.relativePath}/android_common/combined/${blueprint.name}.jar").takeIf {
-                it.exists()
-            }?.let {
-                result.add(it)
-            }
-
-            result
-        }.mapNotNull {
-            it.toVirtualFile()
-        }.firstNotNullOfOrNull { jarFile ->
-//            logLines.add("finder: $fqcn -> ${jarFile.canonicalPath}")
-            findClassFileInOutputJar(jarFile, fqcn)?.let { content ->
-                jarFile to content
-            }
-        }?.let { (file, content) ->
-//            logLines.add("content size: ${content.size}")
-            ClassContent.fromJarEntryContent(file.toIoFile(), content)
-        }.also {
-//            logLines.add("finder: ${if (it == null) "not found" else "found"}")
-//            synchronized(this@BlueprintModuleClassFinder) {
-//                logLines.forEach(Log::warn)
-//            }
+        return JarClassIndex.getInstance(module).findClass(module, jars, fqcn)?.let { (jar, content) ->
+            ClassContent.fromJarEntryContent(jar, content)
         }
     }
 
-    private fun findClassFileInOutputJar(outputRoot: VirtualFile, fqcn: String): ByteArray? {
-        if (!outputRoot.exists()) return null
-
-        val pathSegments = fqcn.split(".").toTypedArray()
-        pathSegments[pathSegments.size - 1] += SdkConstants.DOT_CLASS
-        val outputBase = (JarFileSystem.getInstance().getJarRootForLocalFile(outputRoot) ?: outputRoot)
-
-        val classFile = VfsUtil.findRelativeFile(outputBase, *pathSegments)
-            ?: VfsUtil.findFile(Paths.get(outputBase.path, *pathSegments), true)
-
-        if (classFile == null || !classFile.exists()) {
-            return null
+    private fun getOutputJars(moduleSystem: BlueprintModuleSystem): List<File>? {
+        val blueprints = moduleSystem.blueprints
+        jars?.takeIf { it.isUpToDate(blueprints) }?.let {
+            return it.jars
         }
 
-        return try {
-            with(classFile.inputStream) {
-                readAllBytes()
-            }
-        } catch (e: IOException) {
-            LOG.error("Class read failed", e)
-            null
+        val aospPath = module.project.guessAospRoot() ?: return null
+        val rootPath = SoongTools.getOutputPath(aospPath)
+        val generation = rootPath.generation
+
+        // Jars which are not built yet point to a guessed folder, the list is resolved
+        // again until all of them are found
+        return blueprints.filter {
+            it.isAndroidProject() || it.isJavaProject()
+        }.map { blueprint ->
+            rootPath.getPath("${blueprint.relativePath}/android_common/combined/${blueprint.name}.jar")
+        }.also {
+            jars = if (it.all(File::exists)) OutputJars(blueprints, rootPath, generation, it) else null
         }
     }
-}
\ No newline at end of file
+}
@@ -22,11 +22,29 @@ import com.android.tools.module.ModuleDependencies
 import com.esotericsoftware.kryo.kryo5.minlog.Log
 import com.github.pvoid.androidbp.blueprint.Blueprint
 import com.github.pvoid.androidbp.blueprint.DependenciesScope
+import com.github.pvoid.androidbp.blueprint.JavaClosure
 import com.intellij.openapi.module.Module
 import com.intellij.openapi.module.ModuleManager
 import com.intellij.openapi.vfs.VirtualFile
 import com.intellij.psi.search.GlobalSearchScope
 import org.jetbrains.android.facet.AndroidFacet
+import java.io.File
+
+/**
+ * Libraries built for the dependencies list. Valid until the list is replaced or
+ * the output paths are invalidated by a sync. Only lists with all the outputs built
+ * are cached, so outputs built later are picked up by the next call
+ */
+private class AndroidLibrariesCache(
+    private val dependencies: List<Pair<DependenciesScope, Blueprint>>,
+    private val outputs: OutputPaths,
+    private val generation: Int,
+    val libraries: Collection<ExternalAndroidLibrary>
+) {
+    fun isUpToDate(dependencies: List<Pair<DependenciesScope, Blueprint>>): Boolean {
+        return this.dependencies === dependencies && outputs.generation == generation
+    }
+}
 
 class BlueprintModuleSystem(
     override val module: Module
@@ -37,6 +55,34 @@ class BlueprintModuleSystem(
 
     private var dependencies: List<Pair<DependenciesScope, Blueprint>> = emptyList()
 
+    /**
+     * Names of java dependencies of the module found by the last sync
+     */
+    @Volatile
+    var javaDependencies: Set<String> = emptySet()
+        internal set
+
+    /**
+     * Java dependencies walked by the last sync, the next sync walks only the changed part of it
+     */
+    @Volatile
+    var javaClosure: JavaClosure? = null
+        internal set
+
+    /**
+     * Names of java dependencies the module has a library for. Dependencies without outputs
+     * have none and are retried by every sync
+     */
+    @Volatile
+    var linkedLibraries: Set<String> = emptySet()
+        internal set
+
+    /**
+     * Android libraries built by the last [getAndroidLibraryDependencies] call
+     */
+    @Volatile
+    private var androidLibraries: AndroidLibrariesCache? = null
+
     private val classFinder = BlueprintModuleClassFinder(module)
 
     override val moduleDependencies: ModuleDependencies = BlueprintModuleDependencies(module)
@@ -47,6 +93,7 @@ class BlueprintModuleSystem(
 
         synchronized(this) {
             this@BlueprintModuleSystem.dependencies = deps
+            androidLibraries = null
         }
 
         deps.forEach { (scope, blueprint) ->
@@ -65,21 +112,35 @@ class BlueprintModuleSystem(
     override val moduleClassFileFinder: ClassFileFinder = classFinder
 
     override fun getAndroidLibraryDependencies(scope: DependencyScopeType): Collection<ExternalAndroidLibrary> {
-        val rootPath = module.project.guessAospRoot()?.let(SoongTools::getOutputPath)
-            ?: return emptyList()
         val deps = synchronized(this) {
             dependencies
         }
 
-        return deps.filter { (_, blueprint) ->
+        // Libraries don't depend on the scope so all the scopes share the same list
+        androidLibraries?.takeIf { it.isUpToDate(deps) }?.let {
+            return it.libraries
+        }
+
+        val rootPath = module.project.guessAospRoot()?.let(SoongTools::getOutputPath)
+            ?: return emptyList()
+        val generation = rootPath.generation
+
+        var isComplete = true
+        val built = { file: File ->
+            file.exists().also {
+                isComplete = isComplete && it
+            }
+        }
+
+        val libraries = deps.filter { (_, blueprint) ->
             blueprint.isAndroidProject() || blueprint.isAndroidImport()
         }.map { (_, blueprint) ->
             val record = AndroidDependencyRecord.Builder(blueprint.name)
                 .withPackageName(blueprint.packageName())
-                .withR(blueprint.R(rootPath))
+                .withR(blueprint.R(rootPath)?.also { built(it) })
                 .withManifest(blueprint.manifest())
 
-            blueprint.outputJars(rootPath).filter { it.exists() }.foldRight(record) { jar, r ->
+            blueprint.outputJars(rootPath).filter(built).foldRight(record) { jar, r ->
                 r.withJar(jar)
             }
 
@@ -88,8 +149,8 @@ class BlueprintModuleSystem(
             }
 
             if (blueprint.isAndroidImport()) {
-                blueprint.resApk(rootPath)?.takeIf { it.exists() }?.also { record.withResApk(it) }
-                blueprint.generatedResources(rootPath).filter { it.exists() }.foldRight(record) { res, r ->
+                blueprint.resApk(rootPath)?.takeIf(built)?.also { record.withResApk(it) }
+                blueprint.generatedResources(rootPath).filter(built).foldRight(record) { res, r ->
                     r.withGeneratedRes(res)
                 }
             } else {
@@ -106,6 +167,9 @@ class BlueprintModuleSystem(
                 null
             }
         }
+
+        androidLibraries = if (isComplete) AndroidLibrariesCache(deps, rootPath, generation, libraries) else null
+        return libraries
     }
 
     override fun getDirectResourceModuleDependents(): List<Module> {
@@ -0,0 +1,176 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.github.pvoid.androidbp.idea.project
+
+import com.android.SdkConstants
+import com.github.pvoid.androidbp.idea.LOG
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.components.service
+import com.intellij.openapi.module.Module
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.zip.ZipFile
+
+// Lookups racing with a rebuild retry against the new snapshot
+private const val MAX_ATTEMPTS = 3
+
+// Jar timestamps are checked at most that often, lookups in between trust the snapshot
+private const val CHECK_INTERVAL_MS = 1000L
+
+/**
+ * Maps class files to the jars containing them. Every module has its own map built from
+ * central directories of its jars, the map is rebuilt when the list of jars or any jar
+ * timestamp changes. Archives stay open while the map is in use and are closed when
+ * the last lookup using them finishes or the project is closed
+ */
+@Service(Service.Level.PROJECT)
+class JarClassIndex : Disposable {
+
+    private class Snapshot(
+        val jars: List<File>,
+        val timestamps: LongArray,
+        val archives: List<ZipFile?>,
+        val classes: Map<String, Int>
+    ) {
+        // The index holds one reference until the snapshot is replaced
+        private val users = AtomicInteger(1)
+
+        @Volatile
+        private var checkedAt = System.currentTimeMillis()
+
+        fun isUpToDate(jars: List<File>): Boolean {
+            if (this.jars !== jars && this.jars != jars) {
+                return false
+            }
+
+            val now = System.currentTimeMillis()
+            if (now - checkedAt < CHECK_INTERVAL_MS) {
+                return true
+            }
+
+            return jars.indices.all { jars[it].lastModified() == timestamps[it] }.also {
+                if (it) {
+                    checkedAt = now
+                }
+            }
+        }
+
+        fun acquire(): Boolean {
+            while (true) {
+                val count = users.get()
+                if (count == 0) {
+                    return false
+                }
+                if (users.compareAndSet(count, count + 1)) {
+                    return true
+                }
+            }
+        }
+
+        fun release() {
+            if (users.decrementAndGet() == 0) {
+                archives.forEach { it?.close() }
+            }
+        }
+    }
+
+    private val snapshots = ConcurrentHashMap<String, Snapshot>()
+
+    @Volatile
+    private var isDisposed = false
+
+    /**
+     * Looks for the class in the jars of the module. The first jar containing the class wins
+     * @return the jar and content of the class file
+     */
+    fun findClass(module: Module, jars: List<File>, fqcn: String): Pair<File, ByteArray>? {
+        val entryName = fqcn.replace('.', '/') + SdkConstants.DOT_CLASS
+
+        repeat(MAX_ATTEMPTS) {
+            val index = acquireSnapshot(module.name, jars) ?: return null
+            try {
+                val position = index.classes[entryName] ?: return null
+                val archive = index.archives[position] ?: return null
+                val entry = archive.getEntry(entryName) ?: return null
+                return index.jars[position] to archive.getInputStream(entry).use { it.readAllBytes() }
+            } catch (e: IllegalStateException) {
+                // The archive was closed under us, the snapshot is outdated
+                LOG.debug("Jar was closed while reading $fqcn", e)
+            } catch (e: IOException) {
+                LOG.error("Class read failed", e)
+                return null
+            } finally {
+                index.release()
+            }
+        }
+
+        return null
+    }
+
+    override fun dispose() {
+        synchronized(this) {
+            isDisposed = true
+            snapshots.values.forEach(Snapshot::release)
+            snapshots.clear()
+        }
+    }
+
+    private fun acquireSnapshot(key: String, jars: List<File>): Snapshot? {
+        snapshots[key]?.takeIf { it.isUpToDate(jars) && it.acquire() }?.let {
+            return it
+        }
+
+        return synchronized(this) {
+            if (isDisposed) {
+                return null
+            }
+
+            val current = snapshots[key]
+            if (current != null && current.isUpToDate(jars) && current.acquire()) {
+                current
+            } else {
+                build(jars).also {
+                    it.acquire()
+                    snapshots[key] = it
+                    current?.release()
+                }
+            }
+        }
+    }
+
+    private fun build(jars: List<File>): Snapshot {
+        val timestamps = LongArray(jars.size) { jars[it].lastModified() }
+        val classes = mutableMapOf<String, Int>()
+        val archives = jars.mapIndexed { position, jar ->
+            if (!jar.exists()) {
+                return@mapIndexed null
+            }
+
+            try {
+                ZipFile(jar).also { archive ->
+                    archive.entries().asSequence().filter {
+                        it.name.endsWith(SdkConstants.DOT_CLASS)
+                    }.forEach {
+                        classes.putIfAbsent(it.name, position)
+                    }
+                }
+            } catch (e: IOException) {
+                LOG.warn("Can't read jar $jar", e)
+                null
+            }
+        }
+
+        return Snapshot(jars, timestamps, archives, classes)
+    }
+
+    companion object {
+        fun getInstance(module: Module): JarClassIndex = module.project.service()
+    }
+}
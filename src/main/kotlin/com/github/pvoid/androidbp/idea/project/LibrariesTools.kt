@@ -11,24 +11,16 @@ import com.android.ide.common.util.toPathString
 import com.android.projectmodel.ExternalAndroidLibrary
 import com.android.projectmodel.RecursiveResourceFolder
 import com.android.projectmodel.ResourceFolder
-import com.android.tools.idea.util.toVirtualFile
 import com.github.pvoid.androidbp.blueprint.Blueprint
-import com.github.pvoid.androidbp.blueprint.BlueprintsTable
-import com.github.pvoid.androidbp.blueprint.DependenciesScope
-import com.github.pvoid.androidbp.idea.LOG
-import com.intellij.openapi.application.WriteAction
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.roots.OrderRootType
 import com.intellij.openapi.roots.libraries.Library
 import com.intellij.openapi.roots.libraries.LibraryTable
+import com.intellij.openapi.util.Disposer
 import com.intellij.openapi.util.io.FileUtil
 import com.intellij.openapi.vfs.JarFileSystem
-import com.intellij.openapi.vfs.StandardFileSystems
-import com.intellij.openapi.vfs.VirtualFile
-import com.intellij.openapi.vfs.VirtualFileManager
+import com.intellij.openapi.vfs.VfsUtilCore
 import java.io.File
-import java.nio.file.Files
-import java.util.*
 
 // TODO: Make the list configurable
 const val BUILD_CACHE_KATI_SYSTEM_PATH = "out_sys/target/common/obj/JAVA_LIBRARIES/"
@@ -50,16 +42,17 @@ data class BlueprintExternalLibrary(
 ) : ExternalAndroidLibrary
 
 object LibrariesTools {
-    fun createLibrary(table: LibraryTable, blueprint: Blueprint, blueprintsTable: BlueprintsTable, rootPath: File): Library? {
+    const val KOTLIN_RUNTIME_LIBRARY = "KotlinJavaRuntime"
+
+    fun aidlGenLibraryName(blueprint: Blueprint): String = "${blueprint.name}-aidl-gen"
+
+    /**
+     * Collects roots of the library built from the module. Touches only the file system, so
+     * it's called off EDT and the result is applied later by [applyLibraries]
+     */
+    fun librarySpec(blueprint: Blueprint, sources: LibrarySources, rootPath: File): LibrarySpec? {
         if (blueprint.name == "kotlin-stdlib") {
-            return WriteAction.computeAndWait<Library, Throwable> {
-                var lib = table.libraries.firstOrNull { it.name == "KotlinJavaRuntime" }
-                if (lib == null) {
-                    lib = table.createLibrary("KotlinJavaRuntime")
-                    configureKotlinDependency(lib, rootPath)
-                }
-                lib
-            }
+            return kotlinRuntimeSpec(rootPath)
         }
         val outputPath = SoongTools.getOutputPath(rootPath)
         val jars = blueprint.outputJars(outputPath)
@@ -67,78 +60,44 @@ object LibrariesTools {
             return null
         }
 
-        val srcJars = mutableListOf<File>()
-        val sources = mutableSetOf<File>()
-        val queue = Stack<Blueprint>()
-        val processed = Stack<Blueprint>()
+        // Sources of the module, of the modules it uses as sources, its defaults and static libraries
+        val roots = sources.of(blueprint)
 
-        queue.push(blueprint)
-        while (queue.isNotEmpty()) {
-            val bp = queue.pop()
-            processed.add(bp)
+        return LibrarySpec(
+            name = blueprint.name,
+            classes = jars.filter(File::isFile).map { it.toJarUrl() },
+            sources = roots.sources.map { it.toDirectoryUrl() } + roots.srcJars.map { it.toJarUrl() }
+        )
+    }
 
-            if (bp.isJavaProject() || bp.isAndroidProject()) {
-                bp.sources().mapNotNull {
-                    if (it.name[0] == ':') {
-                        blueprintsTable[it.name.substring(1)]?.let { link ->
-                            queue.add(link)
-                        }
-                        null
-                    } else {
-                        it
-                    }
-                }.filter {
-                    it.isDirectory
-                }.toCollection(sources)
-            }
+    /**
+     * Checks if the library exists and has exactly the roots of the spec
+     */
+    fun isUpToDate(table: LibraryTable, spec: LibrarySpec): Boolean {
+        val lib = table.getLibraryByName(spec.name) ?: return false
+        return lib.hasRoots(OrderRootType.CLASSES, spec.classes) && lib.hasRoots(OrderRootType.SOURCES, spec.sources)
+    }
 
-            bp.generatedSources(outputPath).forEach {
-                if (!it.exists()) {
-                    LOG.warn("Generated source archive $it does not exist for ${bp.name}")
-                } else if (it.isDirectory) {
-                    sources.add(it)
-                } else if (it.extension == "jar") {
-                    srcJars.add(it)
-                } else if (it.extension == "srcjar") {
-                    // ArchiveFileType is registered only for jars and not for srcjar
-                    // Hack it by creating a link named .jar
-                    val link = File(it.absolutePath + ".jar")
-                    if (!link.exists()) {
-                        Files.createLink(link.toPath(), it.toPath())
-                    }
-                    srcJars.add(link)
-                }
+    /**
+     * Creates missing libraries and brings roots of all the libraries to the specs. Must be
+     * called inside a write action
+     */
+    fun applyLibraries(table: LibraryTable, specs: List<LibrarySpec>): List<Library> {
+        return specs.map { spec ->
+            val lib = table.getLibraryByName(spec.name) ?: table.createLibrary(spec.name)
+            if (isUpToDate(table, spec)) {
+                return@map lib
             }
 
-            bp.defaults().mapNotNull {
-                blueprintsTable[it]
-            }.filterNot {
-                it in processed
-            }.toCollection(queue)
-
-            bp.dependencies(DependenciesScope.Static).mapNotNull {
-                blueprintsTable[it]
-            }.filterNot {
-                it in processed
-            }.toCollection(queue)
-        }
-
-        return WriteAction.computeAndWait<Library, Throwable> {
-            val lib = table.getLibraryByName(blueprint.name) ?: table.createLibrary(blueprint.name)
             lib.modifiableModel.apply {
-                // TODO: Drop entries
-                jars.forEach {
-                    it.addClassesToLibrary(this)
-                }
-                sources.forEach {
-                    it.addSourcesToLibrary(this)
-                }
-                srcJars.forEach {
-                    it.addSourcesJarToLibrary(this)
+                updateRoots(OrderRootType.CLASSES, spec.classes)
+                updateRoots(OrderRootType.SOURCES, spec.sources)
+                if (isChanged) {
+                    commit()
+                } else {
+                    Disposer.dispose(this)
                 }
-                commit()
             }
-
             lib
         }
     }
@@ -182,7 +141,7 @@ object LibrariesTools {
         }
     }
 
-    fun createAidlGenLibrary(project: Project, table: LibraryTable, blueprint: Blueprint): Library? {
+    fun aidlGenLibrarySpec(project: Project, blueprint: Blueprint): LibrarySpec? {
         val aospRoot = project.guessAospRoot() ?: return null
         val outputPath = SoongTools.getOutputPath(aospRoot)
 
@@ -191,14 +150,14 @@ object LibrariesTools {
                 File(it, aidl)
             }
             val cls = outputPath.getPath("${blueprint.relativePath}/android_common/javac/classes/")
-            cls.toVirtualFile()?.let {
-                it to src
+            cls.takeIf(File::isDirectory)?.let {
+                it.toDirectoryUrl() to src
             }
         } + blueprint.aidl_includes_global().mapNotNull { aidl ->
             val src = outputPath.getPath("${blueprint.relativePath}/android_common/gen/aidl/$aidl")
             val cls = outputPath.getPath("${blueprint.relativePath}/android_common/javac/${blueprint.name}.jar")
-            cls.toJarFileUrl()?.let {
-                it to src
+            cls.takeIf(File::isFile)?.let {
+                it.toJarUrl() to src
             }
         }
 
@@ -206,77 +165,62 @@ object LibrariesTools {
             return null
         }
 
-        return WriteAction.computeAndWait<Library, Throwable> {
-            val name = "${blueprint.name}-aidl-gen"
-            val lib = table.getLibraryByName(name) ?: table.createLibrary(name)
-            lib.modifiableModel.apply {
-                aidls.forEach { (cls, src) ->
-                    this.addRoot(cls, OrderRootType.CLASSES)
-
-                    src.toVirtualFile()?.let {
-                        this.addRoot(it, OrderRootType.SOURCES)
-                    }
-                }
-                commit()
-            }
-
-            lib
-        }
+        return LibrarySpec(
+            name = aidlGenLibraryName(blueprint),
+            classes = aidls.map { (cls, _) -> cls }.distinct(),
+            sources = aidls.map { (_, src) -> src }.filter(File::exists).map { it.toDirectoryUrl() }.distinct()
+        )
     }
 
-    private fun configureKotlinDependency(library: Library, rootPath: File) {
+    private fun kotlinRuntimeSpec(rootPath: File): LibrarySpec {
         val path = File(rootPath, "external/kotlinc/lib/")
-        if (!path.exists() || !path.isDirectory) {
-            return
-        }
-
-        library.modifiableModel.apply {
-            // Classes
-            File(path, "kotlin-stdlib.jar").addClassesToLibrary(this)
-            File(path, "kotlin-test.jar").addClassesToLibrary(this)
-            File(path, "kotlin-reflect.jar").addClassesToLibrary(this)
-            File(path, "kotlin-stdlib-jdk7.jar").addClassesToLibrary(this)
-            File(path, "kotlin-stdlib-jdk8.jar").addClassesToLibrary(this)
-            // Sources
-            File(path, "kotlin-stdlib-sources.jar").addSourcesJarToLibrary(this)
-            File(path, "kotlin-test-sources.jar").addClassesToLibrary(this)
-            File(path, "kotlin-reflect-sources.jar").addSourcesJarToLibrary(this)
-            File(path, "kotlin-stdlib-jdk7-sources.jar").addSourcesJarToLibrary(this)
-            File(path, "kotlin-stdlib-jdk8-sources.jar").addSourcesJarToLibrary(this)
-
-            commit()
-        }
+        val classes = listOf(
+            "kotlin-stdlib.jar", "kotlin-test.jar", "kotlin-reflect.jar", "kotlin-stdlib-jdk7.jar", "kotlin-stdlib-jdk8.jar"
+        )
+        val sources = listOf(
+            "kotlin-stdlib-sources.jar", "kotlin-test-sources.jar", "kotlin-reflect-sources.jar",
+            "kotlin-stdlib-jdk7-sources.jar", "kotlin-stdlib-jdk8-sources.jar"
+        )
+
+        return LibrarySpec(
+            name = KOTLIN_RUNTIME_LIBRARY,
+            classes = classes.map { File(path, it) }.filter(File::isFile).map { it.toJarUrl() },
+            sources = sources.map { File(path, it) }.filter(File::isFile).map { it.toJarUrl() }
+        )
     }
 }
 
+/**
+ * Desired state of a project library, roots are VFS urls
+ */
+class LibrarySpec(
+    val name: String,
+    val classes: List<String>,
+    val sources: List<String>
+)
+
 private fun File.getSystemIndependentPath(): String
         = FileUtil.toSystemIndependentName(absolutePath)
 
-private fun File.toFileSystemUrl(): String
-        = StandardFileSystems.FILE_PROTOCOL_PREFIX + this.getSystemIndependentPath() + "/"
-
+private fun File.toDirectoryUrl(): String
+        = VfsUtilCore.pathToUrl(getSystemIndependentPath())
 
-private fun File.toJarFileUrl(): VirtualFile? {
-    val url = JarFileSystem.PROTOCOL_PREFIX + this.getSystemIndependentPath() + JarFileSystem.JAR_SEPARATOR + "/"
-    return VirtualFileManager.getInstance().findFileByUrl(url)
-}
+private fun File.toJarUrl(): String
+        = JarFileSystem.PROTOCOL_PREFIX + getSystemIndependentPath() + JarFileSystem.JAR_SEPARATOR
 
-private fun File.addClassesToLibrary(lib: Library.ModifiableModel) {
-    toJarFileUrl()?.let {
-        lib.addRoot(it, OrderRootType.CLASSES)
-    }
+private fun Library.hasRoots(type: OrderRootType, urls: List<String>): Boolean {
+    val existing = getUrls(type)
+    return existing.size == urls.size && existing.toSet() == urls.toSet()
 }
 
-private fun File.addSourcesJarToLibrary(lib: Library.ModifiableModel) {
-    toJarFileUrl()?.let {
-        lib.addRoot(it, OrderRootType.SOURCES)
-    }
-}
+/**
+ * Removes roots which are not wanted anymore and adds missing ones, others are kept untouched
+ */
+private fun Library.ModifiableModel.updateRoots(type: OrderRootType, urls: List<String>) {
+    val existing = getUrls(type)
+    val wanted = urls.toSet()
+    existing.filterNot { it in wanted }.forEach { removeRoot(it, type) }
 
-private fun File.addSourcesToLibrary(lib: Library.ModifiableModel) {
-    toFileSystemUrl().let {
-        VirtualFileManager.getInstance().findFileByUrl(it)
-    }?.let {
-        lib.addRoot(it, OrderRootType.SOURCES)
-    }
+    val kept = existing.toSet()
+    urls.filterNot { it in kept }.forEach { addRoot(it, type) }
 }
@@ -0,0 +1,88 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.github.pvoid.androidbp.idea.project
+
+import com.github.pvoid.androidbp.blueprint.Blueprint
+import com.github.pvoid.androidbp.blueprint.DependencyGraph
+import com.github.pvoid.androidbp.idea.LOG
+import java.io.File
+
+// Modules whose sources end up in the library of a module
+private const val SOURCES_MASK = DependencyGraph.SOURCE or DependencyGraph.DEFAULTS or DependencyGraph.STATIC
+
+/**
+ * Source roots of modules together with their defaults, static libraries and modules they
+ * use as sources. Roots of every module are collected once and closures are shared by all
+ * the libraries of the sync. Not thread safe
+ */
+class LibrarySources(
+    private val graph: DependencyGraph,
+    private val outputPath: OutputPaths
+) {
+    class Roots(
+        val sources: Set<File>,
+        val srcJars: Set<File>
+    )
+
+    private val closures = HashMap<String, Roots>()
+
+    private val visiting = HashSet<String>()
+
+    fun of(blueprint: Blueprint): Roots = closure(blueprint)!!
+
+    /**
+     * Memoizes closures which don't touch a cycle. Closures of modules in a cycle lack modules
+     * which are still being walked, they are complete only for the module the walk started from
+     */
+    private fun closure(blueprint: Blueprint): Roots? {
+        closures[blueprint.name]?.let {
+            return it
+        }
+        if (!visiting.add(blueprint.name)) {
+            return null
+        }
+
+        val sources = linkedSetOf<File>()
+        val srcJars = linkedSetOf<File>()
+        var complete = true
+
+        collectOwn(blueprint, sources, srcJars)
+        graph.linksOf(blueprint, SOURCES_MASK).forEach { dependency ->
+            closure(dependency)?.let {
+                sources.addAll(it.sources)
+                srcJars.addAll(it.srcJars)
+            }
+            complete = complete && dependency.name in closures
+        }
+
+        visiting.remove(blueprint.name)
+        return Roots(sources, srcJars).also {
+            if (complete) {
+                closures[blueprint.name] = it
+            }
+        }
+    }
+
+    private fun collectOwn(blueprint: Blueprint, sources: MutableSet<File>, srcJars: MutableSet<File>) {
+        if (blueprint.isJavaProject() || blueprint.isAndroidProject()) {
+            blueprint.sources().filter {
+                it.name[0] != ':' && it.isDirectory
+            }.toCollection(sources)
+        }
+
+        blueprint.generatedSources(outputPath).forEach {
+            if (!it.exists()) {
+                LOG.warn("Generated source archive $it does not exist for ${blueprint.name}")
+            } else if (it.isDirectory) {
+                sources.add(it)
+            } else if (it.extension == "jar" || it.extension == "srcjar") {
+                // srcjar is registered as an archive, so jar file system opens it directly
+                srcJars.add(it)
+            }
+        }
+    }
+}
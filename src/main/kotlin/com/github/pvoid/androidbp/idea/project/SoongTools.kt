@@ -8,7 +8,14 @@ package com.github.pvoid.androidbp.idea.project
 
 import com.android.tools.idea.rendering.tokens.BuildSystemFilePreviewServices
 import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
 
+/**
+ * Resolves paths inside build output folders. Found paths are memoized, so a repeated lookup
+ * is a map hit. Missing paths are looked up again every time, directory listings they use
+ * are re-read when the directory changes. Call [invalidate] when the outputs are rebuilt
+ */
 class OutputPaths(rootPath: File) {
 
     private val outputs = listOf(
@@ -18,42 +25,104 @@ class OutputPaths(rootPath: File) {
         File(rootPath, BUILD_CACHE_KATI_SYSTEM_PATH),
     )
 
+    private val paths = ConcurrentHashMap<String, File>()
+
+    private class Listing(
+        val timestamp: Long,
+        val names: Set<String>
+    )
+
+    private val listings = ConcurrentHashMap<String, Listing>()
+
+    private val generations = AtomicInteger()
+
+    // Changes on every invalidation, so values computed from the paths can be cached
+    val generation: Int
+        get() = generations.get()
+
+    fun invalidate() {
+        paths.clear()
+        listings.clear()
+        generations.incrementAndGet()
+    }
+
     fun getPath(relativePath: String): File {
-        return outputs.firstNotNullOfOrNull { currentRoot ->
-            val file = File(currentRoot, relativePath)
-            if (file.exists()) {
-                file
-            } else {
-                var result: File? = null
-                val path = StringBuilder(currentRoot.absolutePath)
-                var start = 0
-                for (index in 0 until relativePath.length) {
-                    if (relativePath[index] != '/') {
-                        continue
-                    }
-
-                    val name = relativePath.substring(start, index)
-                    if (File(path.toString(), name).exists()) {
-                        path.append('/').append(name)
-                        start = index + 1
-                        continue
-                    }
-
-                    // Find if there is a hash
-                    val prfx = File(path.toString())
-                    result = prfx.list()?.filter { name ->
-                        name.isHexString()
-                    }?.map { hash ->
-                        File(prfx, hash + '/' + relativePath.substring(start))
-                    }?.firstOrNull {
-                        it.exists()
-                    }
-
-                    break
+        paths[relativePath]?.let {
+            return it
+        }
+
+        // Outputs which are not built yet may appear any moment, so misses are not memoized
+        val found = outputs.firstNotNullOfOrNull { currentRoot ->
+            find(currentRoot.absolutePath, relativePath, 0) ?: findHashed(currentRoot.absolutePath, relativePath)
+        } ?: return File(outputs[0], relativePath)
+
+        return File(found).also {
+            paths[relativePath] = it
+        }
+    }
+
+    /**
+     * Soong puts some outputs into folders named by a hash, tries to find
+     * the first missing folder of the path among them
+     */
+    private fun findHashed(root: String, relativePath: String): String? {
+        var path = root
+        var start = 0
+        for (index in relativePath.indices) {
+            if (relativePath[index] != '/') {
+                continue
+            }
+
+            val name = relativePath.substring(start, index)
+            if (name in listing(path)) {
+                path = "$path/$name"
+                start = index + 1
+                continue
+            }
+
+            return listing(path).asSequence().filter { hash ->
+                hash.isHexString()
+            }.firstNotNullOfOrNull { hash ->
+                find("$path/$hash", relativePath, start)
+            }
+        }
+        return null
+    }
+
+    /**
+     * Checks that all the segments of the path starting from [start] exist
+     */
+    private fun find(root: String, relativePath: String, start: Int): String? {
+        var path = root
+        var begin = start
+        while (begin <= relativePath.length) {
+            var end = relativePath.indexOf('/', begin)
+            if (end < 0) {
+                end = relativePath.length
+            }
+
+            if (end > begin) {
+                val name = relativePath.substring(begin, end)
+                if (name !in listing(path)) {
+                    return null
                 }
-                result
+                path = "$path/$name"
             }
-        } ?: File(outputs[0], relativePath)
+            begin = end + 1
+        }
+        return path
+    }
+
+    private fun listing(path: String): Set<String> {
+        val directory = File(path)
+        val timestamp = directory.lastModified()
+        listings[path]?.takeIf { it.timestamp == timestamp }?.let {
+            return it.names
+        }
+
+        val names = directory.list()?.toHashSet() ?: emptySet()
+        listings[path] = Listing(timestamp, names)
+        return names
     }
 }
 
@@ -61,8 +130,12 @@ fun String.isHexString(): Boolean = this.all {
     it.isDigit() || (it in 'a'..'f')
 }
 
+private val OUTPUT_PATHS = ConcurrentHashMap<File, OutputPaths>()
+
 object SoongTools {
-    fun getOutputPath(rootPath: File) = OutputPaths(rootPath)
+    fun getOutputPath(rootPath: File): OutputPaths = OUTPUT_PATHS.getOrPut(rootPath) {
+        OutputPaths(rootPath)
+    }
 
     fun subscribeBuildListener(listener: BuildSystemFilePreviewServices.BuildListener) {
         // NOTE: Preview wants to know when the class was rebuilt and expects that it happens in background
@@ -9,7 +9,6 @@ package com.github.pvoid.androidbp.idea.project.sync
 import com.android.tools.idea.projectsystem.getModuleSystem
 import com.android.tools.idea.util.toVirtualFile
 import com.github.pvoid.androidbp.blueprint.*
-import com.github.pvoid.androidbp.idea.LOG
 import com.github.pvoid.androidbp.idea.project.*
 import com.intellij.facet.FacetManager
 import com.intellij.facet.ModifiableFacetModel
@@ -20,19 +19,28 @@ import com.intellij.openapi.module.ModuleUtil
 import com.intellij.openapi.progress.ProgressIndicator
 import com.intellij.openapi.progress.Task
 import com.intellij.openapi.project.Project
+import com.intellij.openapi.roots.ContentEntry
 import com.intellij.openapi.roots.DependencyScope
 import com.intellij.openapi.roots.LibraryOrderEntry
 import com.intellij.openapi.roots.ModifiableRootModel
 import com.intellij.openapi.roots.ModuleRootManager
+import com.intellij.openapi.roots.libraries.Library
 import com.intellij.openapi.roots.libraries.LibraryTablesRegistrar
 import com.intellij.openapi.vfs.VfsUtilCore
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.util.concurrency.AppExecutorUtil
 import org.jetbrains.android.facet.AndroidFacet
 import org.jetbrains.android.facet.AndroidFacetProperties
+import org.jetbrains.jps.model.JpsElement
 import org.jetbrains.jps.model.java.JavaResourceRootType
 import org.jetbrains.jps.model.java.JavaSourceRootType
+import org.jetbrains.jps.model.module.JpsModuleSourceRootType
 import java.io.File
-import java.nio.file.Files
-import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorCompletionService
+
+private val PARSER_THREADS = Runtime.getRuntime().availableProcessors()
 
 internal abstract class BaseProjectSyncTask(
     project: Project,
@@ -64,93 +72,131 @@ internal abstract class BaseProjectSyncTask(
         }
     }
 
-    protected fun collectBlueprintFiles(root: File): List<File> = collectFiles(root, Blueprint.DEFAULT_NAME)
+    // Project model changes are collected off EDT and applied by applyModelChanges at once
+    private val rootModel: ModifiableRootModel? by lazy {
+        module?.let {
+            ReadAction.compute<ModifiableRootModel, Throwable> {
+                ModuleRootManager.getInstance(it).modifiableModel
+            }
+        }
+    }
 
-    protected fun collectKatiFiles(root: File): List<File> = collectFiles(root, Makefile.DEFAULT_NAME)
+    private val facetModel: ModifiableFacetModel? by lazy {
+        module?.let(FacetManager::getInstance)?.createModifiableModel()
+    }
 
-    private fun collectFiles(root: File, name: String): List<File> {
-        val folders = Stack<File>().apply {
-            push(root)
-        }
-        val result = mutableListOf<File>()
+    private val librarySpecs = mutableListOf<LibrarySpec>()
 
-        while (folders.isNotEmpty()) {
-            folders.pop().listFiles()?.forEach { entry ->
-                if (entry.isFile) {
-                    if (entry.name == name) {
-                        result.add(entry)
-                    }
-                } else if (entry.isDirectory) {
-                    // Skip links, hidden and service folders
-                    if (!Files.isSymbolicLink(entry.toPath()) && !entry.name.startsWith(".")) {
-                        folders.push(entry)
-                    }
-                }
-            }
-        }
-        return result
+    // Links resolved by this sync, shared by all the dependency walks
+    private val graph: DependencyGraph by lazy {
+        DependencyGraph(BlueprintsTable.getInstance(project))
     }
 
-    protected fun parseBlueprints(indicator: ProgressIndicator, aospRoot: File, files: List<File>): Map<String, File> {
-        val result = mutableMapOf<String, File>()
-        val ext = mutableListOf<File>()
-        val queue = Stack<File>()
-        var total = files.size
+    protected fun collectBuildFiles(root: File): BuildFiles = BuildFilesScanner.scan(root)
+
+    protected fun parseBlueprints(
+        indicator: ProgressIndicator,
+        aospRoot: File,
+        files: List<File>,
+        index: Map<File, BlueprintsFileRecord>
+    ): List<BlueprintsFileRecord> {
+        val result = ConcurrentHashMap<File, BlueprintsFileRecord>()
+        val executor = AppExecutorUtil.createBoundedApplicationPoolExecutor("Blueprints parser", PARSER_THREADS)
+        val completion = ExecutorCompletionService<BlueprintsFileRecord>(executor)
+        val submitted = mutableSetOf<File>()
+        var pending = 0
+        var total = 0
         var processed = 0
-        queue.addAll(files)
+
+        // Files are independent, so they are parsed on the pool while this thread
+        // only follows 'build' references and reports the progress
+        fun submit(file: File) {
+            if (submitted.add(file)) {
+                completion.submit(Callable {
+                    readRecord(aospRoot, file, index).also {
+                        result[file] = it
+                    }
+                })
+                ++pending
+                ++total
+            }
+        }
 
         indicator.isIndeterminate = false
         indicator.fraction = 0.0
 
-        while (queue.isNotEmpty()) {
-            val file = queue.pop()
-            ext.clear()
-            BlueprintsTable.parse(aospRoot, file, ext).forEach { blueprint ->
-                result[blueprint.name] = file
-            }
-            queue.addAll(ext)
-            total += ext.size
-            ++processed
+        try {
+            files.forEach(::submit)
 
-            indicator.fraction = processed.toDouble() / total
+            while (pending > 0) {
+                val record = completion.take().get()
+                --pending
+                ++processed
+                record.extra.forEach(::submit)
+
+                indicator.fraction = processed.toDouble() / total
+            }
+        } finally {
+            executor.shutdownNow()
         }
 
-        return result
+        return result.values.toList()
     }
 
-    protected fun parseMakefiles(indicator: ProgressIndicator, aospRoot: File, files: List<File>): Map<String, File> {
-        var processed = 0
+    protected fun parseMakefiles(
+        indicator: ProgressIndicator,
+        aospRoot: File,
+        files: List<File>,
+        index: Map<File, BlueprintsFileRecord>
+    ): List<BlueprintsFileRecord> {
+        val executor = AppExecutorUtil.createBoundedApplicationPoolExecutor("Makefiles parser", PARSER_THREADS)
+        val completion = ExecutorCompletionService<BlueprintsFileRecord>(executor)
 
-        return files.flatMap { file ->
-            Makefile.parse(file, aospRoot).map {
-                it.name to file
-            }.also {
-                ++processed
-                indicator.fraction = processed.toDouble() / files.size
+        indicator.isIndeterminate = false
+        indicator.fraction = 0.0
+
+        // Makefiles don't reference each other, includes are shared through the cache
+        try {
+            files.forEach { file ->
+                completion.submit(Callable {
+                    readRecord(aospRoot, file, index)
+                })
+            }
+
+            return List(files.size) { processed ->
+                completion.take().get().also {
+                    indicator.fraction = (processed + 1).toDouble() / files.size
+                }
             }
-        }.toMap()
+        } finally {
+            executor.shutdownNow()
+        }
     }
 
+    private fun readRecord(aospRoot: File, file: File, index: Map<File, BlueprintsFileRecord>): BlueprintsFileRecord {
+        return BlueprintsTable.read(aospRoot, file, index[file])
+    }
+
+    /**
+     * Brings android facets in line with project blueprints. Facets are returned before
+     * [applyModelChanges] and are valid only after it
+     */
     protected fun updateProjectFacets(): List<AndroidFacet> {
         val facetsManager = module?.let(FacetManager::getInstance) ?: return emptyList()
-        val facetsModel = facetsManager.createModifiableModel()
-
-        return WriteAction.computeAndWait<List<AndroidFacet>, Throwable> {
-            blueprints.filter {
-                it.type == BlueprintType.AndroidApp || it.type == BlueprintType.AndroidLibrary
-            }.mapNotNull { blueprint ->
-                facetsManager.getFacetsByType(AndroidFacet.ID).firstOrNull { facet ->
-                    facet.name == blueprint.name
-                } ?: module?.let {
-                    createAndroidFacet(it, facetsModel, blueprint.name)
-                }
-            }.also { facets ->
-                facetsModel.getFacetsByType(AndroidFacet.ID).filterNot { facet ->
-                    facets.any { it.name == facet.name }
-                }.forEach(facetsModel::removeFacet)
-
-                facetsModel.commit()
+        val facetsModel = facetModel ?: return emptyList()
+
+        return blueprints.filter {
+            it.type == BlueprintType.AndroidApp || it.type == BlueprintType.AndroidLibrary
+        }.mapNotNull { blueprint ->
+            facetsManager.getFacetsByType(AndroidFacet.ID).firstOrNull { facet ->
+                facet.name == blueprint.name
+            } ?: module?.let {
+                createAndroidFacet(it, facetsModel, blueprint.name)
             }
+        }.also { facets ->
+            facetsModel.getFacetsByType(AndroidFacet.ID).filterNot { facet ->
+                facets.any { it.name == facet.name }
+            }.forEach(facetsModel::removeFacet)
         }
     }
 
@@ -165,141 +211,145 @@ internal abstract class BaseProjectSyncTask(
         return facet
     }
 
-    protected fun updateJavaDependencies(aospRoot: File) {
-        val model = module?.let {
-            ModuleRootManager.getInstance(it).modifiableModel
-        } ?: return
-        val dependencies = mutableMapOf<String, Blueprint>()
-        val queue = Stack<String>()
-        val table = BlueprintsTable.getInstance(project)
-
-        blueprints.flatMap { it.dependencies(DependenciesScope.All) }.toCollection(queue)
-        blueprints.flatMap { it.defaults() }.toCollection(queue)
-
-        while (queue.isNotEmpty()) {
-            val name = queue.pop()
-
-            if (dependencies.containsKey(name)) {
-                continue
-            }
-
-            val blueprint = table[name]
-
-            if (blueprint != null) {
-                dependencies[name] = blueprint
-                blueprint.dependencies(DependenciesScope.Dynamic).toCollection(queue)
-                blueprint.defaults().toCollection(queue)
-            } else {
-                LOG.warn("Dependency $name is not found")
-            }
-        }
-
-        // Not all dependencies have the same name as dependency
-        // It is possible to fix up the name first and then remove
-        // disappeared dependencies, but easier remove first and then
-        // add existing
+    /**
+     * Links the module with libraries of its java dependencies. Libraries are only described
+     * here, they are created by [applyModelChanges]
+     * @param changes names of modules changed since the previous sync, only their libraries are
+     * updated. Null updates all the libraries
+     */
+    protected fun updateJavaDependencies(aospRoot: File, changes: Set<String>? = null) {
+        val model = rootModel ?: return
+        val moduleSystem = module?.getModuleSystem() as? BlueprintModuleSystem
+        val previous = moduleSystem?.linkedLibraries ?: emptySet()
+
+        // Only the affected part of the previous closure is walked again
+        val closure = graph.javaDependencies(
+            blueprints, moduleSystem?.javaClosure?.takeIf { changes != null }, changes ?: emptySet()
+        )
+        val dependencies = closure.dependencies
+
+        // Not all dependencies have the same name as dependency so keep
+        // libraries known under both names and drop the rest
+        val libraryNames = dependencies.values.mapTo(mutableSetOf()) { it.name }
+        val knownNames = libraryNames + dependencies.keys + LibrariesTools.KOTLIN_RUNTIME_LIBRARY +
+                blueprints.map { LibrariesTools.aidlGenLibraryName(it) }
         model.orderEntries
             .filterIsInstance(LibraryOrderEntry::class.java)
             .filterNot {
-                dependencies.containsKey(it.libraryName)
+                it.libraryName in knownNames
             }.forEach(model::removeOrderEntry)
 
-        val libraryTable = LibraryTablesRegistrar.getInstance().getLibraryTable(project)
-        // Drop old libs
-        dependencies.values.mapNotNull { blueprint ->
-            LibrariesTools.createLibrary(libraryTable, blueprint, table, aospRoot)
-        }.plus(
-            blueprints.mapNotNull { blueprint ->
-                LibrariesTools.createAidlGenLibrary(project, libraryTable, blueprint)
+        // Untouched libraries stay as they are
+        val sources = LibrarySources(graph, SoongTools.getOutputPath(aospRoot))
+        val linked = mutableSetOf<String>()
+        dependencies.values.distinctBy {
+            it.name
+        }.forEach { blueprint ->
+            if (changes != null && blueprint.name !in changes && blueprint.name in previous) {
+                linked.add(blueprint.name)
+            } else {
+                LibrariesTools.librarySpec(blueprint, sources, aospRoot)?.let {
+                    librarySpecs.add(it)
+                    linked.add(blueprint.name)
+                }
             }
-        ).map { lib ->
-            model.findLibraryOrderEntry(lib) ?: model.addLibraryEntry(lib)
-        }.forEach {
-            it.isExported = true
-            it.scope = DependencyScope.COMPILE
         }
 
-        WriteAction.runAndWait<Throwable> {
-            model.commit()
+        if (changes == null) {
+            blueprints.mapNotNullTo(librarySpecs) { blueprint ->
+                LibrariesTools.aidlGenLibrarySpec(project, blueprint)
+            }
         }
+
+        moduleSystem?.javaDependencies = libraryNames
+        moduleSystem?.javaClosure = closure
+        moduleSystem?.linkedLibraries = linked
     }
 
     protected fun updateProjectBlueprints() {
-        val table = BlueprintsTable.getInstance(project)
-        val androidTypes = listOf(BlueprintType.AndroidApp, BlueprintType.AndroidLibrary, BlueprintType.AndroidImport)
-        val dependencies = mutableMapOf<String, Pair<DependenciesScope, Blueprint>>()
-        val queue = mutableListOf<Pair<DependenciesScope, Blueprint>>()
-
-        blueprints.flatMap { it.dependencies(DependenciesScope.Dynamic) }
-            .mapNotNull(table::get)
-            .map { DependenciesScope.Dynamic to it }
-            .forEach(queue::add)
-
-        blueprints.flatMap { it.dependencies(DependenciesScope.Static) }
-            .mapNotNull(table::get)
-            .map { DependenciesScope.Static to it }
-            .forEach(queue::add)
-
-        while (queue.isNotEmpty()) {
-            val (scope, blueprint) = queue.removeAt(0)
-
-            blueprint.dependencies(DependenciesScope.Dynamic)
-                .filterNot(dependencies::containsKey)
-                .mapNotNull(table::get)
-                .filter { it.type in androidTypes }
-                .map { DependenciesScope.Dynamic to it }
-                .forEach(queue::add)
-
-            blueprint.dependencies(DependenciesScope.Static)
-                .filterNot(dependencies::containsKey)
-                .mapNotNull(table::get)
-                .filter {
-                    it.type in androidTypes
-                }.map {
-                    DependenciesScope.Static to it
-                }.forEach(queue::add)
-
-            dependencies[blueprint.name] = scope to blueprint
-        }
-
+        val dependencies = graph.androidDependencies(blueprints)
         val moduleSystem = module?.getModuleSystem() as? BlueprintModuleSystem ?: return
-        moduleSystem.updateBlueprints(blueprints, dependencies.values)
+        moduleSystem.updateBlueprints(blueprints, dependencies)
     }
 
     protected fun updateSourceRoots() {
-        val model = module?.let {
-            ReadAction.compute<ModifiableRootModel, Throwable> {
-                ModuleRootManager.getInstance(it).modifiableModel
-            }
-        } ?: return
-        val entry = model.contentEntries.first()
+        val entry = rootModel?.contentEntries?.first() ?: return
+
+        // Folders which are already registered stay, so the model is changed only by real changes
+        entry.updateSourceFolders(JavaResourceRootType.RESOURCE, blueprints.flatMap {
+            it.resources()
+        }.mapNotNull {
+            it.toVirtualFile()
+        })
+
+        entry.updateSourceFolders(JavaSourceRootType.SOURCE, blueprints.flatMap {
+            it.sources()
+        }.mapNotNull {
+            it.toVirtualFile()
+        })
+    }
+
+    /**
+     * Applies libraries, facets and root model changes collected by the sync in a single
+     * write action. Nothing is written if the sync changed nothing
+     */
+    protected fun applyModelChanges() {
+        val libraryTable = LibraryTablesRegistrar.getInstance().getLibraryTable(project)
+        val model = rootModel
+        val facets = facetModel
+
+        // Libraries which already have the wanted roots are only linked
+        val (current, outdated) = ReadAction.compute<Pair<List<LibrarySpec>, List<LibrarySpec>>, Throwable> {
+            librarySpecs.partition { LibrariesTools.isUpToDate(libraryTable, it) }
+        }
+        if (model != null) {
+            current.mapNotNull {
+                libraryTable.getLibraryByName(it.name)
+            }.forEach(model::linkLibrary)
+        }
+
+        if (outdated.isEmpty() && model?.isChanged != true && facets?.isModified != true) {
+            model?.dispose()
+            librarySpecs.clear()
+            return
+        }
+
         WriteAction.runAndWait<Throwable> {
-            // Drop existing entries
-            entry.sourceFolders.filter {
-                it.rootType == JavaResourceRootType.RESOURCE || it.rootType == JavaSourceRootType.SOURCE
-            }.forEach {
-                entry.removeSourceFolder(it)
+            if (model != null) {
+                LibrariesTools.applyLibraries(libraryTable, outdated).forEach(model::linkLibrary)
             }
 
-            // resources
-            blueprints.flatMap {
-                it.resources()
-            }.mapNotNull {
-                it.toVirtualFile()
-            }.forEach { path ->
-                entry.addSourceFolder(path, JavaResourceRootType.RESOURCE)
+            if (facets?.isModified == true) {
+                facets.commit()
             }
 
-            // source code
-            blueprints.flatMap {
-                it.sources()
-            }.mapNotNull {
-                it.toVirtualFile()
-            }.forEach { path ->
-                entry.addSourceFolder(path, JavaSourceRootType.SOURCE)
+            if (model?.isChanged == true) {
+                model.commit()
+            } else {
+                model?.dispose()
             }
-
-            model.commit()
         }
+
+        librarySpecs.clear()
     }
-}
\ No newline at end of file
+}
+
+private fun ModifiableRootModel.linkLibrary(lib: Library) {
+    val entry = findLibraryOrderEntry(lib) ?: addLibraryEntry(lib)
+    // Setters mark the model as changed even for the same values
+    if (!entry.isExported) {
+        entry.isExported = true
+    }
+    if (entry.scope != DependencyScope.COMPILE) {
+        entry.scope = DependencyScope.COMPILE
+    }
+}
+
+private fun <P : JpsElement> ContentEntry.updateSourceFolders(type: JpsModuleSourceRootType<P>, folders: List<VirtualFile>) {
+    val existing = sourceFolders.filter { it.rootType == type }
+    val wanted = folders.mapTo(mutableSetOf()) { it.url }
+    existing.filterNot { it.url in wanted }.forEach(::removeSourceFolder)
+
+    val kept = existing.mapTo(mutableSetOf()) { it.url }
+    folders.distinctBy { it.url }.filterNot { it.url in kept }.forEach { addSourceFolder(it, type) }
+}
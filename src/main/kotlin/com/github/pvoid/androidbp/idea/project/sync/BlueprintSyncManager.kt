@@ -9,6 +9,7 @@ package com.github.pvoid.androidbp.idea.project.sync
 import com.android.tools.idea.projectsystem.PROJECT_SYSTEM_SYNC_TOPIC
 import com.android.tools.idea.projectsystem.ProjectSystemSyncManager
 import com.android.tools.idea.projectsystem.ProjectSystemSyncManager.SyncResult
+import com.github.pvoid.androidbp.blueprint.BlueprintsTable
 import com.google.common.util.concurrent.ListenableFuture
 import com.google.common.util.concurrent.SettableFuture
 import com.intellij.openapi.progress.ProgressManager
@@ -123,6 +124,11 @@ class BlueprintSyncManager(
         AppUIUtil.invokeLaterIfProjectAlive(project) {
             project.messageBus.syncPublisher(PROJECT_SYSTEM_SYNC_TOPIC).syncEnded(result)
         }
+
+        // Blueprints changed while the sync was running
+        if (result == SyncResult.SUCCESS && BlueprintsTable.getInstance(project).hasChanges()) {
+            requestSyncProject(ProjectSystemSyncManager.SyncReason.PROJECT_MODIFIED)
+        }
     }
 
     override fun jdkAdded(jdk: Sdk) {
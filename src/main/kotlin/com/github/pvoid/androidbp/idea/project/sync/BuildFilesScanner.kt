@@ -0,0 +1,86 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.github.pvoid.androidbp.idea.project.sync
+
+import com.github.pvoid.androidbp.blueprint.Blueprint
+import com.github.pvoid.androidbp.blueprint.Makefile
+import java.io.File
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.LinkOption
+import java.nio.file.Path
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveAction
+
+internal class BuildFiles(
+    val blueprints: List<File>,
+    val makefiles: List<File>
+)
+
+/**
+ * Walks AOSP tree looking for blueprints and makefiles in a single pass. Every folder
+ * is processed as a separate fork-join task so the walk is spread across all cores
+ */
+internal object BuildFilesScanner {
+    fun scan(root: File): BuildFiles {
+        val blueprints = ConcurrentLinkedQueue<File>()
+        val makefiles = ConcurrentLinkedQueue<File>()
+
+        ForkJoinPool.commonPool().invoke(ScanFolderAction(root.toPath(), blueprints, makefiles))
+
+        return BuildFiles(blueprints.toList(), makefiles.toList())
+    }
+
+    private class ScanFolderAction(
+        private val folder: Path,
+        private val blueprints: MutableCollection<File>,
+        private val makefiles: MutableCollection<File>
+    ) : RecursiveAction() {
+        override fun compute() {
+            val subfolders = mutableListOf<ScanFolderAction>()
+
+            try {
+                Files.newDirectoryStream(folder).use { entries ->
+                    entries.forEach { entry ->
+                        val name = entry.fileName.toString()
+                        // Skip hidden and service entries, build files are never hidden
+                        if (name.startsWith(".")) {
+                            return@forEach
+                        }
+
+                        // A single lstat answers all the questions about the entry
+                        val attributes = try {
+                            Files.readAttributes(entry, BasicFileAttributes::class.java, LinkOption.NOFOLLOW_LINKS)
+                        } catch (e: IOException) {
+                            return@forEach
+                        }
+
+                        when {
+                            attributes.isDirectory -> subfolders.add(ScanFolderAction(entry, blueprints, makefiles))
+                            name == Blueprint.DEFAULT_NAME -> if (entry.isBuildFile(attributes)) blueprints.add(entry.toFile())
+                            name == Makefile.DEFAULT_NAME -> if (entry.isBuildFile(attributes)) makefiles.add(entry.toFile())
+                        }
+                    }
+                }
+            } catch (e: IOException) {
+                // Unreadable folder, the same as listFiles() returning null
+                return
+            }
+
+            if (subfolders.isNotEmpty()) {
+                invokeAll(subfolders)
+            }
+        }
+
+        private fun Path.isBuildFile(attributes: BasicFileAttributes): Boolean {
+            // Linked build files are followed, linked folders are not
+            return attributes.isRegularFile || (attributes.isSymbolicLink && Files.isRegularFile(this))
+        }
+    }
+}
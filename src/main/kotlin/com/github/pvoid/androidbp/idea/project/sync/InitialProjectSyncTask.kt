@@ -11,8 +11,10 @@ import com.android.tools.idea.res.ResourceUpdateTraceSettings
 import com.android.tools.idea.res.StudioResourceRepositoryManager
 import com.android.tools.idea.sdk.AndroidSdks
 import com.android.tools.idea.sdk.wizard.SdkQuickfixUtils
+import com.github.pvoid.androidbp.blueprint.BlueprintsIndex
 import com.github.pvoid.androidbp.blueprint.BlueprintsTable
 import com.github.pvoid.androidbp.idea.project.BlueprintAndroidModel
+import com.github.pvoid.androidbp.idea.project.SoongTools
 import com.github.pvoid.androidbp.idea.project.guessPlatformVersion
 import com.github.pvoid.androidbp.idea.project.sdk.AospSdkType
 import com.intellij.diagnostic.PluginException
@@ -48,21 +50,33 @@ internal class InitialProjectSyncTask (
             return
         }
 
-        indicator.text = "Collecting blueprint files..."
+        // Outputs could be rebuilt since the previous sync
+        SoongTools.getOutputPath(aospRoot).invalidate()
+
+        // Files changed while the tree is parsed are updated again on top of the result
+        val table = BlueprintsTable.getInstance(project)
+        table.beginUpdate()
+
+        indicator.text = "Collecting blueprint files and makefiles..."
         indicator.isIndeterminate = true
-        val blueprintFiles = collectBlueprintFiles(aospRoot)
+        val buildFiles = collectBuildFiles(aospRoot)
 
-        indicator.text = "Collecting makefiles..."
+        indicator.text = "Loading blueprints index..."
         indicator.isIndeterminate = true
-        val katiFiles = collectKatiFiles(aospRoot)
+        val index = BlueprintsIndex.forProject(project, aospRoot)
+        val records = index.read()
 
         indicator.text = "Parsing blueprints..."
-        val blueprints = parseBlueprints(indicator, aospRoot, blueprintFiles)
+        val blueprints = parseBlueprints(indicator, aospRoot, buildFiles.blueprints, records)
 
         indicator.text = "Parsing makefiles..."
-        val makefiles = parseMakefiles(indicator, aospRoot, katiFiles)
+        val makefiles = parseMakefiles(indicator, aospRoot, buildFiles.makefiles, records)
 
-        BlueprintsTable.getInstance(project).update(blueprints + makefiles)
+        table.update(blueprints + makefiles)
+
+        indicator.text = "Saving blueprints index..."
+        indicator.isIndeterminate = true
+        index.write(blueprints + makefiles)
 
         indicator.text = "Updating project blueprints..."
         indicator.isIndeterminate = true
@@ -73,6 +87,7 @@ internal class InitialProjectSyncTask (
         indicator.text = "Updating source roots..."
         indicator.isIndeterminate = true
         updateSourceRoots()
+        applyModelChanges()
 
         facets.forEach { facet ->
             BlueprintAndroidModel.register(facet)
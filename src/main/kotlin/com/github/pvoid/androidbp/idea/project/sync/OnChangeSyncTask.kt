@@ -7,10 +7,16 @@
 package com.github.pvoid.androidbp.idea.project.sync
 
 import com.android.tools.idea.projectsystem.ProjectSystemSyncManager
+import com.android.tools.idea.projectsystem.getModuleSystem
 import com.android.tools.idea.res.StudioResourceRepositoryManager
+import com.github.pvoid.androidbp.blueprint.BlueprintsTable
 import com.github.pvoid.androidbp.idea.project.BlueprintAndroidModel
+import com.github.pvoid.androidbp.idea.project.BlueprintModuleSystem
+import com.github.pvoid.androidbp.idea.project.SoongTools
+import com.intellij.facet.FacetManager
 import com.intellij.openapi.progress.ProgressIndicator
 import com.intellij.openapi.project.Project
+import org.jetbrains.android.facet.AndroidFacet
 import java.io.File
 
 internal class OnChangeSyncTask(
@@ -19,6 +25,39 @@ internal class OnChangeSyncTask(
     private val listener: (ProjectSystemSyncManager.SyncResult) -> Unit
 ) : BaseProjectSyncTask(project, "Initial project sync") {
     override fun run(indicator: ProgressIndicator) {
+        // Outputs could be rebuilt since the previous sync
+        SoongTools.getOutputPath(aospRoot).invalidate()
+
+        val table = BlueprintsTable.getInstance(project)
+        val changes = table.takeChanges()
+        val moduleSystem = module?.getModuleSystem() as? BlueprintModuleSystem
+
+        // Project blueprints define facets and source roots, so update everything
+        if (moduleSystem == null || blueprints.any { it.name in changes }) {
+            updateAll(indicator)
+            return
+        }
+
+        val affected = changes + table.impactOf(changes)
+        if (affected.none { it in moduleSystem.javaDependencies } && blueprints.none { it.name in affected }) {
+            listener(ProjectSystemSyncManager.SyncResult.SUCCESS)
+            return
+        }
+
+        indicator.text = "Updating project blueprints..."
+        indicator.isIndeterminate = true
+        updateJavaDependencies(aospRoot, affected)
+        updateProjectBlueprints()
+        applyModelChanges()
+
+        module?.let(FacetManager::getInstance)?.getFacetsByType(AndroidFacet.ID)?.forEach { facet ->
+            StudioResourceRepositoryManager.getInstance(facet).resetAllCaches()
+        }
+
+        listener(ProjectSystemSyncManager.SyncResult.SUCCESS)
+    }
+
+    private fun updateAll(indicator: ProgressIndicator) {
         indicator.text = "Updating project blueprints..."
         indicator.isIndeterminate = true
         updateJavaDependencies(aospRoot)
@@ -28,6 +67,7 @@ internal class OnChangeSyncTask(
         indicator.text = "Updating source roots..."
         indicator.isIndeterminate = true
         updateSourceRoots()
+        applyModelChanges()
 
         facets.forEach { facet ->
             BlueprintAndroidModel.register(facet)
@@ -36,4 +76,4 @@ internal class OnChangeSyncTask(
 
         listener(ProjectSystemSyncManager.SyncResult.SUCCESS)
     }
-}
\ No newline at end of file
+}